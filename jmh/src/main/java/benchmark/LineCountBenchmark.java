@@ -0,0 +1,57 @@
+package benchmark;
+
+import assignment2.LineCounts;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * LineCountBenchmark
+ * LineCounts engines on generated text files of varying size and line length
+ * - readLine: BufferedReader.readLine() loop
+ * - mapped:   memory-mapped SWAR scan on the fork-join pool (ParallelLineCounter)
+ * The fixture file is written once per trial and deleted after it; the line count is returned,
+ * so JMH consumes it and the scan can not be eliminated as dead code
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineCountBenchmark {
+
+    @Param({"1048576", "67108864"})
+    private long size;
+
+    @Param({"16", "200"})
+    private int lineLength;
+
+    private Fixtures fixtures;
+    private String path;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixtures = new Fixtures(Files.createTempDirectory("jmh-fixtures").toFile());
+        File file = fixtures.textFile(size, lineLength);
+        path = file.getPath();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixtures.delete();
+    }
+
+    @Benchmark
+    public int readLine() throws IOException {
+        return LineCounts.countLines(path);
+    }
+
+    @Benchmark
+    public long mapped() throws IOException {
+        return LineCounts.countLinesMapped(path);
+    }
+}
@@ -0,0 +1,111 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * TransferBenchmark
+ * One file over loopback per operation, against servers running in their own processes
+ * - tcpGet:   FileServer (threads mode), one connection per get, every byte read and counted
+ * - udpFetch: UDPServer, INFO + Stop-and-Wait FETCH_FILE for every chunk
+ * 1. Setup generates an HTML page of the size under test and starts both servers on it (port 12345),
+ *    the benchmark JVM only runs the client side
+ * 2. Teardown stops the servers and deletes the page, the next trial starts from a clean directory
+ * No other server may be listening on port 12345 while this runs
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransferBenchmark {
+
+    private static final String SERVER_ADDRESS = "127.0.0.1";
+    private static final int PORT = 12345;
+    // How long the servers may take to start listening
+    private static final long STARTUP_TIMEOUT = 10000; // ms
+
+    @Param({"1024", "65536", "1048576"})
+    private int size;
+
+    private Fixtures fixtures;
+    private String filename;
+    private Process tcpServer;
+    private Process udpServer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixtures = new Fixtures(Files.createTempDirectory("jmh-fixtures").toFile());
+        File page = fixtures.htmlFile(size);
+        filename = page.getName();
+
+        String directory = fixtures.getDirectory().getAbsolutePath();
+        tcpServer = startServer("assignment3.FileServer", directory, "--mode", "threads");
+        udpServer = startServer("assignment4.UDPServer", directory);
+        awaitServers();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        for (Process server : new Process[]{tcpServer, udpServer}) {
+            if (server != null) {
+                server.destroy();
+                server.waitFor(5, TimeUnit.SECONDS);
+            }
+        }
+        fixtures.delete();
+    }
+
+    @Benchmark
+    public void tcpGet() throws IOException {
+        BenchmarkRunner.tcpGet(filename, size);
+    }
+
+    @Benchmark
+    public void udpFetch() throws IOException {
+        BenchmarkRunner.udpFetch(filename, size);
+    }
+
+    // The server's main class in a JVM of its own, on this JVM's class path, its console output discarded
+    private static Process startServer(String mainClass, String... args) throws IOException {
+        List<String> command = new ArrayList<>(List.of(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-cp", System.getProperty("java.class.path"), mainClass));
+        command.addAll(List.of(args));
+        return new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+    }
+
+    // Wait until both servers answer: a TCP connect, then one complete UDP fetch
+    private void awaitServers() throws Exception {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(SERVER_ADDRESS, PORT), 500);
+                break;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw new IOException("FileServer did not start", e);
+                Thread.sleep(100);
+            }
+        }
+        while (true) {
+            try {
+                BenchmarkRunner.udpFetch(filename, size);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw new IOException("UDPServer did not start", e);
+            }
+        }
+    }
+}
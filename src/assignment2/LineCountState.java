@@ -0,0 +1,63 @@
+package assignment2;
+
+import common.LineIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * LineCountState
+ * Checkpoints (LineIndex) of every file counted with --incremental, kept in one state file between runs
+ * 1. One line per file after a version header, keyed by absolute path
+ * 2. Written to a temporary file and moved into place, an interrupted run leaves the previous state
+ * 3. A state file of another version, or a line that does not parse, only costs a full recount
+ */
+class LineCountState {
+
+    private static final String HEADER = "# LineCounts state 1";
+
+    private final File file;
+    private final Map<String, LineIndex> indexes = new LinkedHashMap<>();
+
+    LineCountState(File file) throws IOException {
+        this.file = file;
+        if (!file.isFile()) return;
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(HEADER)) {
+            System.out.println("[Warning] Ignoring state file " + file + " of another version");
+            return;
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            LineIndex index = LineIndex.parse(line);
+            if (index != null) {
+                indexes.put(index.getPath(), index);
+            }
+        }
+    }
+
+    // Checkpoint of filename, a new one (count from byte 0) if there is none
+    LineIndex get(String filename) {
+        String path = Path.of(filename).toAbsolutePath().normalize().toString();
+        return indexes.computeIfAbsent(path, LineIndex::new);
+    }
+
+    void save() throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(HEADER);
+        for (LineIndex index : indexes.values()) {
+            lines.add(index.toLine());
+        }
+        Path temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp").toPath();
+        Files.write(temp, lines, StandardCharsets.UTF_8);
+        Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
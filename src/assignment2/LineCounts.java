@@ -1,14 +1,41 @@
 package assignment2;
 
+import common.LineIndex;
+
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class LineCounts {
 
+    private static final String USAGE = "Usage: java assignment2.LineCounts [--parallel] <file1> <file2> ...\n"
+            + "       java assignment2.LineCounts --incremental [--state <file>] [--follow] [--interval <ms>] <file1> <file2> ...";
+    // Where --incremental keeps its checkpoints unless --state says otherwise
+    private static final String DEFAULT_STATE_FILE = ".linecounts";
+    private static final long DEFAULT_FOLLOW_INTERVAL = 1000; // ms
+
     public static void main(String[] args) {
         if (args.length == 0) {
-            System.out.println("Usage: java assignment2.LineCounts <file1> <file2> ...");
+            System.out.println(USAGE);
+            return;
+        }
+
+        if (args[0].equals("--parallel")) {
+            countLinesParallel(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args[0].equals("--incremental")) {
+            countLinesIncremental(Arrays.copyOfRange(args, 1, args.length));
             return;
         }
 
@@ -23,7 +50,7 @@ public class LineCounts {
         }
     }
 
-    private static int countLines(String filename) throws IOException {
+    public static int countLines(String filename) throws IOException {
         int lines = 0;
         // Try-with-resources
         try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
@@ -35,4 +62,98 @@ public class LineCounts {
 
         return lines;
     }
-}
\ No newline at end of file
+
+    // Single file through the parallel engine, used by the benchmarks
+    public static long countLinesMapped(String filename) throws IOException {
+        try {
+            return ForkJoinPool.commonPool().invoke(new ParallelLineCounter.FileTask(Paths.get(filename)));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Count from the checkpoint of the last run, only bytes appended since then are read
+    // --follow keeps going and prints a file's count whenever it grows
+    private static void countLinesIncremental(String[] args) {
+        File stateFile = new File(DEFAULT_STATE_FILE);
+        boolean follow = false;
+        long interval = DEFAULT_FOLLOW_INTERVAL;
+        int first = 0;
+        for (; first < args.length && args[first].startsWith("--"); first++) {
+            if (args[first].equals("--state") && first + 1 < args.length) {
+                stateFile = new File(args[++first]);
+            } else if (args[first].equals("--follow")) {
+                follow = true;
+            } else if (args[first].equals("--interval") && first + 1 < args.length) {
+                interval = Long.parseLong(args[++first]);
+            } else {
+                System.out.println(USAGE);
+                return;
+            }
+        }
+        String[] filenames = Arrays.copyOfRange(args, first, args.length);
+        if (filenames.length == 0) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        try {
+            LineCountState state = new LineCountState(stateFile);
+            Set<String> failing = new HashSet<>();
+            // First round prints every file, later rounds only the ones that changed
+            boolean changed = updateCounts(state, filenames, true, failing);
+            if (changed) state.save();
+
+            while (follow) {
+                Thread.sleep(interval);
+                if (updateCounts(state, filenames, false, failing)) {
+                    state.save();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("[Error] State file " + stateFile + " failed, e: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Returns true if any checkpoint moved, errors are printed once until the file can be read again (e.g. during rotation)
+    private static boolean updateCounts(LineCountState state, String[] filenames, boolean printAll, Set<String> failing) {
+        boolean changed = false;
+        for (String filename : filenames) {
+            LineIndex index = state.get(filename);
+            try {
+                boolean updated = index.update();
+                failing.remove(filename);
+                changed |= updated;
+                if (printAll || updated) {
+                    System.out.println(filename + ": " + index.getLineCount());
+                }
+            } catch (IOException e) {
+                if (failing.add(filename)) {
+                    System.out.println("[Error] reading " + filename + " failed, e: " + e.getMessage());
+                }
+            }
+        }
+        return changed;
+    }
+
+    // Start every file at once on the fork-join pool, big files are split into ranges as well
+    private static void countLinesParallel(String[] filenames) {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        List<ForkJoinTask<Long>> tasks = new ArrayList<>();
+        for (String filename : filenames) {
+            tasks.add(pool.submit(new ParallelLineCounter.FileTask(Paths.get(filename))));
+        }
+
+        // Print in argument order, same output as the sequential engine
+        for (int i = 0; i < filenames.length; i++) {
+            try {
+                System.out.println(filenames[i] + ": " + tasks.get(i).join());
+            } catch (RuntimeException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                System.out.println("[Error] reading " + filenames[i] + " failed, e: " + cause.getMessage());
+            }
+        }
+    }
+}
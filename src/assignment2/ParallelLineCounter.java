@@ -0,0 +1,142 @@
+package assignment2;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * ParallelLineCounter
+ * Counts lines on raw bytes instead of decoding every line into a String
+ * 1. A file is split into ranges of at most SPLIT_SIZE bytes, each range is one fork-join task
+ * 2. Every range is memory-mapped and scanned 8 bytes at a time (SWAR) for '\n' and '\r'
+ * 3. The result matches counting BufferedReader.readLine():
+ *    "\n", "\r" and "\r\n" end a line, and a last line without terminator still counts
+ */
+class ParallelLineCounter {
+
+    // Ranges larger than this are split in half
+    private static final long SPLIT_SIZE = 32L * 1024 * 1024;
+
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL; // '\n' in every byte
+    private static final long RETURNS = 0x0D0D0D0D0D0D0D0DL;  // '\r' in every byte
+
+    // Counts all lines of one file, submit it to a ForkJoinPool so many files run at once
+    static class FileTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+        private final Path path;
+
+        FileTask(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        protected Long compute() {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size == 0) return 0L;
+
+                long lines = new RangeTask(channel, size, 0, size).compute();
+
+                // A last line without terminator is still a line for readLine()
+                MappedByteBuffer last = channel.map(FileChannel.MapMode.READ_ONLY, size - 1, 1);
+                byte b = last.get(0);
+                if (b != '\n' && b != '\r') {
+                    lines++;
+                }
+                return lines;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Counts line terminators in [start, end) of the file
+    private static class RangeTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+        private final FileChannel channel;
+        private final long fileSize;
+        private final long start;
+        private final long end;
+
+        RangeTask(FileChannel channel, long fileSize, long start, long end) {
+            this.channel = channel;
+            this.fileSize = fileSize;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Long compute() {
+            if (end - start > SPLIT_SIZE) {
+                List<RangeTask> halves = new ArrayList<>();
+                long middle = start + (end - start) / 2;
+                halves.add(new RangeTask(channel, fileSize, start, middle));
+                halves.add(new RangeTask(channel, fileSize, middle, end));
+                long lines = 0;
+                for (RangeTask task : invokeAll(halves)) {
+                    lines += task.join();
+                }
+                return lines;
+            }
+
+            try {
+                // Map one extra byte if there is one, so a '\r' at the end of the range can see the next byte
+                long mapEnd = Math.min(fileSize, end + 1);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, mapEnd - start);
+                return countTerminators(buffer, (int) (end - start));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Number of line terminators that start in the first length bytes of the buffer
+    static long countTerminators(MappedByteBuffer buffer, int length) {
+        long lines = 0;
+        int i = 0;
+
+        for (; i + 8 <= length; i += 8) {
+            long word = buffer.getLong(i);
+            lines += Long.bitCount(zeroBytes(word ^ NEWLINES));
+
+            // '\r' is rare, only look at it byte by byte when the word has one
+            long returns = zeroBytes(word ^ RETURNS);
+            while (returns != 0) {
+                // Big-endian: the highest set bit is the first byte in the word
+                int index = i + Long.numberOfLeadingZeros(returns) / 8;
+                if (!isNewline(buffer, index + 1)) {
+                    lines++;
+                }
+                returns &= ~Long.highestOneBit(returns);
+            }
+        }
+
+        for (; i < length; i++) {
+            byte b = buffer.get(i);
+            if (b == '\n') {
+                lines++;
+            } else if (b == '\r' && !isNewline(buffer, i + 1)) {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    // High bit set in every byte of x that is zero, exact (no false positives from borrows)
+    private static long zeroBytes(long x) {
+        long t = (x & LOW_BITS) + LOW_BITS;
+        return ~(t | x | LOW_BITS);
+    }
+
+    // "\r\n" is one terminator, so a '\r' directly followed by '\n' is not counted on its own
+    private static boolean isNewline(MappedByteBuffer buffer, int index) {
+        return index < buffer.limit() && buffer.get(index) == '\n';
+    }
+}
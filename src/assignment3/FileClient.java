@@ -1,8 +1,24 @@
 package assignment3;
 
+import common.ContentCache;
+import common.DigestCache;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
 
 /*
  * FileClient
@@ -10,66 +26,610 @@ import java.util.Scanner;
  * 2. Connect Server
  * 3. Send/Recv
  * 4. Close
+ *
+ * "get <filename> lines <from>-<to>" and "get <filename> bytes <offset>-<length>" print part of a file
+ * With --parallel <n> and --out, get splits a file into PART_SIZE byte ranges fetched over up to n connections,
+ * each connection takes the next range when it is done with one, so a slow connection does not hold up the rest
  */
 public class FileClient {
 
     private static final String SERVER_ADDRESS = "127.0.0.1";
     private static final int SERVER_PORT = 12345;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // A file whose crc32c does not match is fetched again this many times
+    private static final int MAX_VERIFY_RETRIES = 1;
+    // Size of the byte ranges of a --parallel get
+    private static final long PART_SIZE = 8L * 1024 * 1024;
+    // A --parallel get is written to "<file>.tmp" and renamed over the file once verified
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Directory to save downloaded files in, null prints them instead
+    private static File outputDirectory;
+    // Reuse one connection for every command (server keep-alive mode)
+    private static boolean keepAlive = false;
+    // Ask for the deflate-compressed form of files, the server only sends it for files that compress
+    private static boolean compress = false;
+    // With --cache, copies of fetched files; a get of an unchanged file then costs one round trip
+    private static ContentCache cache;
+    // Connections of one get, 1 fetches the whole file with a single request
+    private static int parallel = 1;
+
+    // One TCP connection with its streams
+    private static class Connection implements Closeable {
+        final Socket socket;
+        final PrintWriter out;
+        final InputStream in;
+
+        Connection() throws IOException {
+            socket = new Socket(InetAddress.getByName(SERVER_ADDRESS), SERVER_PORT);
+            // Setup input and output streams, flushed explicitly so pipelined commands go out together
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        }
+
+        void send(String command) {
+            out.print(command + "\n");
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
 
     public static void main(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--out") && i + 1 < args.length) {
+                outputDirectory = new File(args[++i]);
+            } else if (args[i].equals("--keepalive")) {
+                keepAlive = true;
+            } else if (args[i].equals("--compress")) {
+                compress = true;
+            } else if (args[i].equals("--parallel") && i + 1 < args.length) {
+                parallel = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--cache") && i + 1 < args.length) {
+                try {
+                    cache = new ContentCache(new File(args[++i]));
+                } catch (IOException e) {
+                    System.out.println("[Error] Can not use cache directory " + args[i] + ", e: " + e.getMessage());
+                    return;
+                }
+            } else {
+                System.out.println("Usage: java assignment3.FileClient [--out <directory>] [--keepalive] [--compress] [--cache <directory>] [--parallel <n>]");
+                return;
+            }
+        }
+        if (parallel > 1 && outputDirectory == null) {
+            System.out.println("[Warning] --parallel writes ranges into a file and needs --out, using one connection per get");
+        }
+
         Scanner scanner = new Scanner(System.in);
 
-        System.out.println("Available commands: 'index' or 'get <filename>' or 'exit'");
+        System.out.println("Available commands: 'index' or 'get <filename>' or 'get <filename> lines <from>-<to>' or 'get <filename> bytes <offset>-<length>'"
+                + " or 'mget <file1> <file2> ...' or 'stats' or 'exit'");
 
+        Connection persistent = null;
         while (true) {
             System.out.print("\nEnter command: ");
             String userCommand = scanner.nextLine();
 
             if (userCommand.equalsIgnoreCase("exit")) break;
 
-            try (Socket socket = new Socket(InetAddress.getByName(SERVER_ADDRESS), SERVER_PORT)) {
-                // Setup input and output streams
-                // Use true here to auto flush buffer instantly
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            try {
+                if (keepAlive && persistent == null) {
+                    persistent = openKeepAlive();
+                }
 
                 // Handle the response
                 System.out.println("------------------------");
-                if (userCommand.equals("index")) {
-                    // Send command to server
-                    out.println(userCommand);
-                    System.out.println("File List:");
-                    String line;
-                    while ((line = in.readLine()) != null) {
-                        System.out.println(line);
+                if (userCommand.startsWith("mget ")) {
+                    String[] filenames = userCommand.substring(5).trim().split("\\s+");
+                    if (persistent != null) {
+                        pipelineGets(persistent, filenames);
+                    } else {
+                        for (String filename : filenames) {
+                            getFile(null, filename);
+                        }
                     }
                 } else if (userCommand.startsWith("get ")) {
-                    // Send command to server
-                    out.println(userCommand);
-                    String status = in.readLine();
-                    System.out.println(status);
-
-                    if ("ok".equals(status)) {
-                        System.out.println("File found. Content:");
-                        String line;
-                        while ((line = in.readLine()) != null) {
-                            System.out.println(line);
-                        }
-                    } else if ("error".equals(status)) {
-                        System.out.println("[Error] File not found");
+                    String filename = userCommand.substring(4).trim();
+                    if (isRange(filename)) {
+                        getRange(persistent, "get " + filename);
+                    } else if (parallel > 1 && outputDirectory != null) {
+                        getParallel(filename);
                     } else {
-                        System.out.println("[Warning] Unexpected status: " + status);
+                        getFile(persistent, filename);
                     }
+                } else if (persistent != null) {
+                    runCommand(persistent, userCommand);
                 } else {
-                    System.out.println("[Warning] Unexpected command");
+                    try (Connection connection = new Connection()) {
+                        runCommand(connection, userCommand);
+                    }
                 }
                 System.out.println("------------------------");
 
             } catch (IOException e) {
                 System.out.println("[Error] Connection error, e: " + e.getMessage());
+                // Reconnect on the next command
+                closeQuietly(persistent);
+                persistent = null;
             }
         }
 
+        closeQuietly(persistent);
         scanner.close();
     }
-}
\ No newline at end of file
+
+    // Open a connection and switch it to keep-alive, falls back to one connection per command
+    private static Connection openKeepAlive() throws IOException {
+        Connection connection = new Connection();
+        connection.send("keepalive");
+        if ("ok".equals(readLine(connection.in))) {
+            return connection;
+        }
+
+        System.out.println("[Warning] Server does not support keep-alive, using one connection per command");
+        keepAlive = false;
+        connection.close();
+        return null;
+    }
+
+    private static void runCommand(Connection connection, String userCommand) throws IOException {
+        // index and stats both answer with text
+        if (userCommand.equals("index") || userCommand.equals("stats")) {
+            // Send command to server
+            connection.send(userCommand);
+            if (userCommand.equals("index")) {
+                System.out.println("File List:");
+            }
+            if (keepAlive) {
+                // Framed: "ok <size>" and the list, the connection stays open
+                String status = readLine(connection.in);
+                if (status != null && status.startsWith("ok ")) {
+                    long size = Long.parseLong(status.substring(3).trim());
+                    copyBytes(connection.in, System.out, size, null);
+                } else {
+                    System.out.println("[Warning] Unexpected status: " + status);
+                }
+            } else {
+                String line;
+                while ((line = readLine(connection.in)) != null) {
+                    System.out.println(line);
+                }
+            }
+        } else {
+            System.out.println("[Warning] Unexpected command");
+        }
+    }
+
+    // One get on the kept connection, or on a new one if persistent is null, fetched again if it fails its crc32c check
+    private static void getFile(Connection persistent, String filename) throws IOException {
+        for (int attempt = 0; attempt <= MAX_VERIFY_RETRIES; attempt++) {
+            if (attempt > 0) {
+                System.out.println("[Warning] Fetch " + filename + " again");
+            }
+            if (persistent != null) {
+                persistent.send(getCommand(filename));
+                if (readGetResponse(persistent.in, filename)) return;
+            } else {
+                try (Connection connection = new Connection()) {
+                    connection.send(getCommand(filename));
+                    if (readGetResponse(connection.in, filename)) return;
+                }
+            }
+        }
+    }
+
+    // "<filename> lines|bytes <a>-<b>", the server answers with that part of the file
+    private static boolean isRange(String text) {
+        String[] parts = text.split(" ");
+        return parts.length >= 3 && (parts[parts.length - 2].equals("lines") || parts[parts.length - 2].equals("bytes"))
+                && parts[parts.length - 1].contains("-");
+    }
+
+    // A line or byte range is printed as it arrives, it is never cached nor saved over the whole file
+    private static void getRange(Connection persistent, String command) throws IOException {
+        if (persistent != null) {
+            persistent.send(command);
+            readRangeResponse(persistent.in);
+        } else {
+            try (Connection connection = new Connection()) {
+                connection.send(command);
+                readRangeResponse(connection.in);
+            }
+        }
+    }
+
+    private static void readRangeResponse(InputStream in) throws IOException {
+        String status = readLine(in);
+        System.out.println(status);
+
+        if (status != null && status.startsWith("ok ")) {
+            // "ok <size> lines=<first>-<last> total=<lines>" or "ok <size> bytes=<offset>-<size> total=<file size> crc32c=<hex>"
+            long size = Long.parseLong(status.split(" ")[1]);
+            long copied = copyBytes(in, System.out, size, null);
+            if (copied < size) {
+                System.out.println("\n[Error] Transfer truncated: " + copied + "/" + size + " bytes");
+            }
+        } else if ("error".equals(status)) {
+            System.out.println("[Error] File not found or invalid range");
+        } else {
+            System.out.println("[Warning] Unexpected status: " + status);
+            if (status == null) {
+                throw new EOFException("Connection closed by server");
+            }
+        }
+    }
+
+    // Reply to "get <filename> bytes <offset>-<length>"
+    private static final class RangeReply {
+        private final long offset;
+        private final long length;
+        private final long total;
+        private final String digest;
+
+        // "ok <size> bytes=<offset>-<size> total=<file size> crc32c=<hex>"
+        private RangeReply(String status) throws IOException {
+            if (status == null || !status.startsWith("ok ")) {
+                throw new IOException("Range request failed: " + status);
+            }
+            long offset = -1;
+            long total = -1;
+            String digest = null;
+            String[] parts = status.split(" ");
+            for (int i = 2; i < parts.length; i++) {
+                if (parts[i].startsWith("bytes=")) {
+                    offset = Long.parseLong(parts[i].substring(6, parts[i].indexOf('-')));
+                } else if (parts[i].startsWith("total=")) {
+                    total = Long.parseLong(parts[i].substring(6));
+                } else if (parts[i].startsWith("crc32c=")) {
+                    digest = parts[i].substring(7);
+                }
+            }
+            if (offset < 0 || total < 0 || digest == null) {
+                throw new IOException("Unexpected range reply: " + status);
+            }
+            this.offset = offset;
+            this.length = Long.parseLong(parts[1]);
+            this.total = total;
+            this.digest = digest;
+        }
+    }
+
+    // One --parallel get: the ranges still to fetch and the file they are written into
+    private static final class RangeDownload {
+        private final String filename;
+        private final FileChannel target;
+        private final long total;
+        private final String digest;
+        // Offset of the next range nobody has taken yet, the first one is fetched before the others start
+        private final AtomicLong nextOffset = new AtomicLong(PART_SIZE);
+        private volatile String failure;
+
+        private RangeDownload(String filename, FileChannel target, long total, String digest) {
+            this.filename = filename;
+            this.target = target;
+            this.total = total;
+            this.digest = digest;
+        }
+    }
+
+    // get with --parallel: the first range also tells the size and crc32c, so a file of one range costs a single request;
+    // the rest is taken range by range by up to parallel connections and written in place into a temporary file next to
+    // the target, which replaces the target only once the whole file is checked
+    private static void getParallel(String filename) throws IOException {
+        File localFile = new File(outputDirectory, new File(filename).getName());
+        File tempFile = new File(localFile.getPath() + TEMP_SUFFIX);
+        try {
+            for (int attempt = 0; attempt <= MAX_VERIFY_RETRIES; attempt++) {
+                if (attempt > 0) {
+                    System.out.println("[Warning] Fetch " + filename + " again");
+                }
+                String digest = downloadRanges(filename, tempFile);
+                if (digest == null) return;
+
+                String actual = DigestCache.format(DigestCache.crc32c(tempFile.toPath()));
+                if (!digest.equals(actual)) {
+                    System.out.println("[Error] " + filename + " crc32c " + actual + " does not match " + digest);
+                    continue;
+                }
+                Files.move(tempFile.toPath(), localFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (cache != null) {
+                    cache.put(filename, localFile);
+                }
+                System.out.println("Saved " + localFile.length() + " bytes to " + localFile.getPath() + ", crc32c verified");
+                return;
+            }
+        } finally {
+            // Left behind by a failed or unverified download, the target itself was never touched
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    // Fetch every range of filename into tempFile, returns the crc32c the server sent or null if the download failed
+    // tempFile is only created once the server answered the first range
+    private static String downloadRanges(String filename, File tempFile) throws IOException {
+        Connection first = openRangeConnection();
+        try {
+            first.send("get " + filename + " bytes 0-" + PART_SIZE);
+            String status = readLine(first.in);
+            System.out.println(status);
+            if ("error".equals(status)) {
+                System.out.println("[Error] File not found");
+                return null;
+            }
+            RangeReply reply = new RangeReply(status);
+
+            try (FileChannel target = FileChannel.open(tempFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                copyToFile(first.in, target, 0, reply.length);
+                RangeDownload download = new RangeDownload(filename, target, reply.total, reply.digest);
+
+                long ranges = (reply.total + PART_SIZE - 1) / PART_SIZE;
+                int connections = (int) Math.max(1, Math.min(parallel, ranges - 1));
+                List<Thread> workers = new ArrayList<>();
+                for (int i = 1; i < connections; i++) {
+                    Thread worker = new Thread(() -> fetchRanges(download, null), "range-" + i);
+                    worker.start();
+                    workers.add(worker);
+                }
+                fetchRanges(download, first);
+                // Close before waiting, a server serving one connection at a time only gets to the others then
+                closeQuietly(first);
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+                if (ranges > 1) {
+                    System.out.println(ranges + " ranges over " + connections + " connections");
+                }
+
+                if (download.failure != null) {
+                    System.out.println("[Error] " + filename + ": " + download.failure);
+                    return null;
+                }
+                return download.digest;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for ranges");
+        } finally {
+            closeQuietly(first);
+        }
+    }
+
+    // Take and fetch ranges until none is left, on connection or (null) a connection of its own
+    private static void fetchRanges(RangeDownload download, Connection connection) {
+        boolean own = connection == null;
+        if (own) {
+            try {
+                connection = openRangeConnection();
+            } catch (IOException e) {
+                // It has not taken a range yet, the other connections fetch its share
+                System.out.println("[Warning] Range connection failed, e: " + e.getMessage());
+                return;
+            }
+        }
+        try {
+            long offset;
+            while (download.failure == null && (offset = download.nextOffset.getAndAdd(PART_SIZE)) < download.total) {
+                connection.send("get " + download.filename + " bytes " + offset + "-" + PART_SIZE);
+                RangeReply reply = new RangeReply(readLine(connection.in));
+                if (reply.offset != offset || reply.total != download.total || !reply.digest.equals(download.digest)) {
+                    throw new IOException("File changed on the server during the download");
+                }
+                copyToFile(connection.in, download.target, offset, reply.length);
+            }
+        } catch (IOException | RuntimeException e) {
+            download.failure = e.getMessage();
+        } finally {
+            if (own) {
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    // A new keep-alive connection, every range of a --parallel get is answered on one of its own connections
+    private static Connection openRangeConnection() throws IOException {
+        Connection connection = new Connection();
+        connection.send("keepalive");
+        String reply = readLine(connection.in);
+        if (!"ok".equals(reply)) {
+            connection.close();
+            throw new IOException("Server refused the connection: " + reply);
+        }
+        return connection;
+    }
+
+    // Write exactly length bytes from in into target at position
+    private static void copyToFile(InputStream in, FileChannel target, long position, long length) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long copied = 0;
+        while (copied < length) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, length - copied));
+            if (n < 0) {
+                throw new EOFException("Range at " + position + " truncated: " + copied + "/" + length + " bytes");
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, n);
+            while (bytes.hasRemaining()) {
+                target.write(bytes, position + copied + bytes.position());
+            }
+            copied += n;
+        }
+    }
+
+    // Send every get at once, then read the responses in the same order, files that fail their check go out in a second batch
+    private static void pipelineGets(Connection connection, String[] filenames) throws IOException {
+        List<String> pending = List.of(filenames);
+        for (int attempt = 0; attempt <= MAX_VERIFY_RETRIES && !pending.isEmpty(); attempt++) {
+            StringBuilder batch = new StringBuilder();
+            for (String filename : pending) {
+                batch.append(getCommand(filename)).append("\n");
+            }
+            connection.out.print(batch);
+            connection.out.flush();
+
+            List<String> failed = new ArrayList<>();
+            for (String filename : pending) {
+                System.out.println(filename + ":");
+                if (!readGetResponse(connection.in, filename)) {
+                    failed.add(filename);
+                }
+            }
+            pending = failed;
+        }
+    }
+
+    // get <filename> [enc=deflate] [if=<crc32c of the cached copy>]
+    private static String getCommand(String filename) throws IOException {
+        String version = cache == null ? null : cache.version(filename);
+        return "get " + filename + (compress ? " enc=deflate" : "") + (version == null ? "" : " if=" + version);
+    }
+
+    // Returns false if the file arrived but does not match its crc32c, so it should be fetched again
+    private static boolean readGetResponse(InputStream in, String filename) throws IOException {
+        String status = readLine(in);
+        System.out.println(status);
+
+        if (status != null && status.startsWith("ok ")) {
+            // "ok <size> [crc32c=<hex>] [enc=deflate]", exactly <size> raw (or deflated) bytes follow
+            String[] parts = status.split(" ");
+            long size = Long.parseLong(parts[1]);
+            String digest = null;
+            boolean deflated = false;
+            for (int i = 2; i < parts.length; i++) {
+                if (parts[i].startsWith("crc32c=")) {
+                    digest = parts[i].substring(7);
+                } else if (parts[i].equals("enc=deflate")) {
+                    deflated = true;
+                }
+            }
+            return receiveFile(in, filename, size, digest, deflated);
+        } else if (status != null && status.startsWith("unchanged")) {
+            // "unchanged crc32c=<hex>", nothing follows, the cached copy is still current
+            useCachedCopy(filename);
+        } else if ("error".equals(status)) {
+            System.out.println("[Error] File not found");
+        } else {
+            System.out.println("[Warning] Unexpected status: " + status);
+            if (status == null) {
+                throw new EOFException("Connection closed by server");
+            }
+        }
+        return true;
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection == null) return;
+        try {
+            connection.close();
+        } catch (IOException e) {
+            System.out.println("[Warning] Close connection failed, e: " + e.getMessage());
+        }
+    }
+
+    private static void useCachedCopy(String filename) throws IOException {
+        File copy = cache.file(filename);
+        if (outputDirectory != null) {
+            File localFile = new File(outputDirectory, new File(filename).getName());
+            Files.copy(copy.toPath(), localFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("Saved " + localFile.length() + " bytes to " + localFile.getPath() + " from the cache, not modified");
+        } else {
+            System.out.println("Not modified. Cached content:");
+            Files.copy(copy.toPath(), System.out);
+            System.out.flush();
+        }
+    }
+
+    // Copy exactly size bytes into a file under outputDirectory, or to stdout, returns false on a crc32c mismatch
+    // deflated: the bytes are a deflate stream, inflated on the way and checked after inflating
+    private static boolean receiveFile(InputStream in, String filename, long size, String digest, boolean deflated) throws IOException {
+        OutputStream target;
+        File localFile = null;
+        if (outputDirectory != null) {
+            localFile = new File(outputDirectory, new File(filename).getName());
+            target = new FileOutputStream(localFile);
+        } else {
+            System.out.println("File found. Content:");
+            // With a cache the content is collected first, it has to be stored as well
+            target = cache != null ? new ByteArrayOutputStream() : System.out;
+        }
+
+        long copied;
+        CRC32C crc = new CRC32C();
+        try {
+            if (deflated) {
+                Inflater inflater = new Inflater();
+                try {
+                    InflaterOutputStream inflating = new InflaterOutputStream(new CheckedOutputStream(target, crc), inflater);
+                    copied = copyBytes(in, inflating, size, null);
+                    // Flush what is left in the inflater without closing the target (it may be stdout)
+                    inflating.finish();
+                    target.flush();
+                } finally {
+                    inflater.end();
+                }
+            } else {
+                copied = copyBytes(in, target, size, crc);
+            }
+        } finally {
+            if (localFile != null) {
+                target.close();
+            }
+        }
+
+        if (copied < size) {
+            System.out.println("\n[Error] Transfer truncated: " + copied + "/" + size + " bytes");
+            return true;
+        }
+        String actual = String.format("%08x", crc.getValue());
+        if (digest != null && !digest.equals(actual)) {
+            System.out.println("\n[Error] " + filename + " crc32c " + actual + " does not match " + digest);
+            return false;
+        }
+        if (cache != null) {
+            if (localFile != null) {
+                cache.put(filename, localFile);
+            } else {
+                byte[] content = ((ByteArrayOutputStream) target).toByteArray();
+                System.out.write(content);
+                System.out.flush();
+                cache.put(filename, content);
+            }
+        }
+        if (localFile != null) {
+            System.out.println("Saved " + localFile.length() + " bytes to " + localFile.getPath() + (deflated ? " from " + size + " deflated" : "")
+                    + (digest != null ? ", crc32c verified" : ""));
+        }
+        return true;
+    }
+
+    // Copy at most size bytes, returns how many were copied before end of stream, crc (if not null) sees every byte
+    private static long copyBytes(InputStream in, OutputStream target, long size, CRC32C crc) throws IOException {
+        long copied = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (copied < size) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, size - copied));
+            if (n < 0) break;
+            target.write(buffer, 0, n);
+            if (crc != null) {
+                crc.update(buffer, 0, n);
+            }
+            copied += n;
+        }
+        target.flush();
+        return copied;
+    }
+
+    // Read one "\n" terminated UTF-8 line without reading past it, null at end of stream
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) return null;
+        return line.toString(StandardCharsets.UTF_8).replace("\r", "");
+    }
+}
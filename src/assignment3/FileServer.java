@@ -1,7 +1,31 @@
 package assignment3;
 
+import common.AsyncLog;
+import common.CompressedCache;
+import common.ContentArena;
+import common.DigestCache;
+import common.DirectoryIndex;
+import common.LineIndexCache;
+import common.ServerMetrics;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
  * FileServer
@@ -42,93 +66,658 @@ import java.net.*;
  * - ISN: Initial Sequence Number (Randomly generated to prevent spoofing)
  * - SYN: Synchronize flag (used to initiate connection)
  * - ACK: Acknowledge flag (used to confirm receipt)
+ *
+ * Serving modes (--mode):
+ * - single:  serve each connection inside the accept loop, one client at a time
+ * - threads: one thread per connection (virtual threads on Java 21+), limited by --max-connections
+ * - nio:     one Selector event loop for all connections; a get that would hash, compress or index a file first
+ *            (a cache miss) is prepared on a worker and handed back to the loop, which writes it
+ * Connections that send nothing for --idle-timeout ms are closed
+ *
+ * Keep-alive: a client that sends "keepalive" first (reply "ok") keeps the connection open
+ * Every response is then framed ("ok <size>" + body, or one status line), so commands can be pipelined
+ *
+ * Content arena (--arena): files up to ARENA_MAX_FILE are preloaded into one off-heap buffer (ContentArena),
+ * a get of one of them is answered without touching the filesystem, the body is a direct slice of the arena
+ *
+ * Ranges: "get <filename> lines <from>-<to>" and "get <filename> bytes <offset>-<length>" send part of a file,
+ * line ranges are found with a cached sparse line-offset index (LineIndexCache) instead of a scan from the start
+ *
+ * Metrics: index/get are counted and timed into latency histograms, next to bytes sent and open connections,
+ * readable with the "stats" command and over JMX (assignment3:type=FileServer),
+ * per-command and per-connection log lines are only printed with --log, by a background thread
  */
 public class FileServer {
 
     private static final String SERVER_ADDRESS = "127.0.0.1";
     private static final int PORT = 12345;
+    // Longest command line we accept
+    private static final int MAX_COMMAND_LENGTH = 1024;
+    private static final String KEEP_ALIVE = "keepalive";
+    // Whole-file CRC32C sent with every get, one entry per recently served file
+    private static final DigestCache digestCache = new DigestCache(256);
+    // Deflate form of files for "get <filename> enc=deflate", compressed once per file version
+    private static final CompressedCache compressedCache = new CompressedCache(256, 64L * 1024 * 1024);
+    // Sparse line-offset index of every file recently asked for by line range
+    private static final LineIndexCache lineIndexes = new LineIndexCache(256);
+    // Option keys that may trail "get <filename>" as "key=value", everything before them is the filename
+    private static final String[] GET_OPTION_KEYS = {"enc", "if"};
+    // Files served from the off-heap content arena (--arena), null when off
+    private static final long ARENA_MAX_FILE = 256 * 1024;
+    private static final long ARENA_MAX_BYTES = 256L * 1024 * 1024;
+    private static ContentArena contentArena;
+    private static final String USAGE = "Usage: java FileServer <directory_path> [--mode single|threads|nio] [--max-connections <n>] [--idle-timeout <ms>] [--log] [--arena]";
+    // Commands timed by the metrics, the first word of the command
+    private static final ServerMetrics metrics = new ServerMetrics("assignment3", "FileServer", "index", "get");
+    private static final LongAdder sentBytes = metrics.counter("bytesSent");
+    private static final LongAdder connectionsAccepted = metrics.counter("connectionsAccepted");
+    private static final AtomicInteger openConnections = new AtomicInteger();
+    // Per-command log lines (--log), null when off
+    private static final int LOG_QUEUE = 8192;
+    private static AsyncLog requestLog;
+
+    private static File directory;
+    private static DirectoryIndex directoryIndex;
+    private static int maxConnections = 256;
+    private static int idleTimeout = 30000;
+    // nio mode: prepares responses that need a cache miss filled, finished ones wait in preparedResponses for the loop
+    private static ExecutorService preparePool;
+    private static final Queue<PreparedResponse> preparedResponses = new ConcurrentLinkedQueue<>();
 
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.out.println("Usage: java FileServer <directory_path>");
+            System.out.println(USAGE);
             return;
         }
 
-        File directory = new File(args[0]);
+        String mode = "single";
+        boolean arena = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--mode") && i + 1 < args.length) {
+                mode = args[++i];
+            } else if (args[i].equals("--max-connections") && i + 1 < args.length) {
+                maxConnections = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--idle-timeout") && i + 1 < args.length) {
+                idleTimeout = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--log")) {
+                requestLog = new AsyncLog("tcp-log", LOG_QUEUE);
+            } else if (args[i].equals("--arena")) {
+                arena = true;
+            } else {
+                System.out.println(USAGE);
+                return;
+            }
+        }
+
+        directory = new File(args[0]);
         if (!directory.exists() || !directory.isDirectory()) {
             System.out.println("[Error] The path specified is not a valid directory");
             return;
         }
 
-        System.out.println("Server started on port " + PORT);
+        directoryIndex = new DirectoryIndex(directory);
+        if (arena) {
+            contentArena = new ContentArena(directory, ARENA_MAX_FILE, ARENA_MAX_BYTES);
+            metrics.gauge("arenaFiles", contentArena::getFileCount);
+            metrics.gauge("arenaBytes", contentArena::getUsedBytes);
+            System.out.println("Content arena: " + contentArena.getFileCount() + " files, " + contentArena.getUsedBytes() + " bytes off-heap");
+        }
+        metrics.gauge("openConnections", openConnections::get);
+        if (requestLog != null) {
+            metrics.gauge("logDropped", requestLog::getDropped);
+        }
+        metrics.register();
+
+        System.out.println("Server started on port " + PORT + " (mode: " + mode + ")");
         System.out.println("Files directory: " + directory.getAbsolutePath());
 
         // Start the TCP Server
         // Create socket, Bind port, and Listen
-        try (ServerSocket serverSocket = new ServerSocket(PORT, 0, InetAddress.getByName(SERVER_ADDRESS))) {
-            while (true) {
-                // Accept an incoming client connection (blocking call)
-                try (Socket clientSocket = serverSocket.accept()) {
-                    System.out.println("Client connected: " + clientSocket.getInetAddress());
-
-                    // Setup input and output streams
-                    BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                    PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-
-                    String command = in.readLine();
-                    if (command == null) continue;
-
-                    System.out.println("Received command: " + command);
-
-                    // Process the command
-                    if (command.equals("index")) {
-                        handleIndexCommand(out, directory);
-                    } else if (command.startsWith("get ")) {
-                        String filename = command.substring(4).trim();
-                        handleGetCommand(out, directory, filename);
-                    } else {
-                        out.println("Unknown command");
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getByName(SERVER_ADDRESS), PORT));
+
+            if (mode.equals("nio")) {
+                runEventLoop(serverChannel);
+            } else {
+                runAcceptLoop(serverChannel, mode.equals("threads"));
+            }
+        } catch (IOException e) {
+            System.out.println("[Error] Could not start server, e: " + e.getMessage());
+        }
+    }
+
+    // single/threads mode: blocking accept, the connection is served inline or on its own thread
+    private static void runAcceptLoop(ServerSocketChannel serverChannel, boolean concurrent) throws IOException {
+        ExecutorService connectionPool = concurrent ? newConnectionExecutor() : null;
+        Semaphore slots = new Semaphore(maxConnections);
+
+        while (true) {
+            // Accept an incoming client connection (blocking call)
+            SocketChannel clientChannel = serverChannel.accept();
+
+            if (!concurrent) {
+                serveConnection(clientChannel);
+            } else if (slots.tryAcquire()) {
+                connectionPool.execute(() -> {
+                    try {
+                        serveConnection(clientChannel);
+                    } finally {
+                        slots.release();
                     }
+                });
+            } else {
+                rejectConnection(clientChannel);
+            }
+        }
+    }
 
-                    System.out.println("Closing connection");
-                } catch (IOException e) {
-                    System.out.println("[Error] Establish connection, e: " + e.getMessage());
+    // Virtual thread per connection if the JDK has them (Java 21+), otherwise a cached platform thread pool
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private static void serveConnection(SocketChannel clientChannel) {
+        connectionsAccepted.increment();
+        openConnections.incrementAndGet();
+        try (SocketChannel channel = clientChannel) {
+            Socket clientSocket = channel.socket();
+            log("Client connected: " + clientSocket.getInetAddress());
+
+            // Reads through the socket stream honor the idle timeout
+            clientSocket.setSoTimeout(idleTimeout);
+            InputStream in = new BufferedInputStream(clientSocket.getInputStream());
+
+            boolean keepAlive = false;
+            String command;
+            try {
+                while ((command = readCommand(in)) != null) {
+                    if (command.equals(KEEP_ALIVE)) {
+                        keepAlive = true;
+                        Response.of("ok\n").writeFully(channel);
+                        continue;
+                    }
+
+                    Response response = handleCommand(command, keepAlive);
+                    response.writeFully(channel);
+                    sentBytes.add(response.getBytesWritten());
+                    if (!keepAlive) break;
                 }
+            } catch (CommandTooLongException e) {
+                System.out.println("[Error] Command too long");
+                Response.of("error\n").writeFully(channel);
             }
+
+            log("Closing connection");
+        } catch (SocketTimeoutException e) {
+            System.out.println("[Warning] Closing idle connection");
         } catch (IOException e) {
-            System.out.println("[Error] Could not start server, e: " + e.getMessage());
+            System.out.println("[Error] Establish connection, e: " + e.getMessage());
+        } finally {
+            openConnections.decrementAndGet();
         }
     }
 
-    private static void handleIndexCommand(PrintWriter out, File directory) {
-        File[] files = directory.listFiles();
+    // Thrown by readCommand for a line longer than MAX_COMMAND_LENGTH
+    private static final class CommandTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
 
-        if (files != null) {
-            for (File file : files) {
-                if (file.isFile()) {
-                    out.println(file.getName());
+    // Read one "\n" terminated command, null at the end of the stream
+    // Bounded like the nio input buffer, a client can not make the server hold an endless line
+    private static String readCommand(InputStream in) throws IOException {
+        byte[] line = new byte[MAX_COMMAND_LENGTH];
+        int length = 0;
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (length == MAX_COMMAND_LENGTH) throw new CommandTooLongException();
+            line[length++] = (byte) b;
+        }
+        if (b == -1 && length == 0) return null;
+        return new String(line, 0, length, StandardCharsets.UTF_8).replace("\r", "");
+    }
+
+    // Per-connection and per-command lines only go out with --log, from the log thread
+    private static void log(String line) {
+        if (requestLog != null) {
+            requestLog.log(line);
+        }
+    }
+
+    private static void rejectConnection(SocketChannel clientChannel) {
+        try (SocketChannel channel = clientChannel) {
+            System.out.println("[Warning] Too many connections, rejecting " + channel.socket().getInetAddress());
+            Response.of("busy\n").writeFully(channel);
+        } catch (IOException e) {
+            System.out.println("[Error] Reject connection, e: " + e.getMessage());
+        }
+    }
+
+    // Per-connection state of the nio mode
+    private static class Connection {
+        final ByteBuffer input = ByteBuffer.allocate(MAX_COMMAND_LENGTH);
+        Response response;
+        boolean keepAlive;
+        // A worker is preparing the response, the connection neither reads nor writes until it is back
+        boolean preparing;
+        long lastActive = System.currentTimeMillis();
+    }
+
+    // Response a worker prepared for the connection of key
+    private static class PreparedResponse {
+        final SelectionKey key;
+        final Response response;
+
+        PreparedResponse(SelectionKey key, Response response) {
+            this.key = key;
+            this.response = response;
+        }
+    }
+
+    // nio mode: one thread multiplexes accept, read and write of every connection
+    private static void runEventLoop(ServerSocketChannel serverChannel) throws IOException {
+        Selector selector = Selector.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        preparePool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        int connections = 0;
+
+        while (true) {
+            // Wake up regularly even without events, to close idle connections
+            selector.select(Math.max(1, idleTimeout / 2));
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                try {
+                    if (key.isAcceptable()) {
+                        SocketChannel clientChannel = serverChannel.accept();
+                        if (clientChannel == null) continue;
+                        if (connections >= maxConnections) {
+                            rejectConnection(clientChannel);
+                            continue;
+                        }
+                        log("Client connected: " + clientChannel.socket().getInetAddress());
+                        clientChannel.configureBlocking(false);
+                        clientChannel.register(selector, SelectionKey.OP_READ, new Connection());
+                        connections++;
+                        connectionsAccepted.increment();
+                    } else if (key.isReadable()) {
+                        onReadable(key);
+                    } else if (key.isWritable()) {
+                        onWritable(key);
+                    }
+                } catch (IOException e) {
+                    System.out.println("[Error] Connection failed, e: " + e.getMessage());
+                    // Failed accepts leave the server channel registered
+                    if (key.attachment() instanceof Connection) {
+                        closeConnection(key);
+                    }
+                }
+
+                if (!key.isValid() && key.attachment() instanceof Connection) {
+                    connections--;
                 }
             }
+
+            PreparedResponse prepared;
+            while ((prepared = preparedResponses.poll()) != null) {
+                SelectionKey key = prepared.key;
+                if (!key.isValid()) {
+                    // Closed while the worker was busy
+                    prepared.response.close();
+                    continue;
+                }
+                try {
+                    Connection connection = (Connection) key.attachment();
+                    connection.preparing = false;
+                    connection.response = prepared.response;
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    onWritable(key);
+                } catch (IOException e) {
+                    System.out.println("[Error] Connection failed, e: " + e.getMessage());
+                    closeConnection(key);
+                }
+                if (!key.isValid()) {
+                    connections--;
+                }
+            }
+
+            connections -= closeIdleConnections(selector);
+            openConnections.set(connections);
         }
     }
 
-    private static void handleGetCommand(PrintWriter out, File directory, String filename) {
+    private static void onReadable(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        connection.lastActive = System.currentTimeMillis();
+
+        if (channel.read(connection.input) < 0) {
+            closeConnection(key);
+            return;
+        }
+
+        if (nextResponse(key)) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            onWritable(key);
+        } else if (connection.preparing) {
+            key.interestOps(0);
+        } else if (!connection.input.hasRemaining()) {
+            System.out.println("[Error] Command too long");
+            closeConnection(key);
+        }
+    }
+
+    private static void onWritable(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        connection.lastActive = System.currentTimeMillis();
+
+        while (connection.response.writeTo(channel)) {
+            sentBytes.add(connection.response.getBytesWritten());
+            connection.response = null;
+            if (!connection.keepAlive) {
+                log("Closing connection");
+                closeConnection(key);
+                return;
+            }
+            // Pipelined commands may already be buffered, answer them before reading again
+            if (!nextResponse(key)) {
+                key.interestOps(connection.preparing ? 0 : SelectionKey.OP_READ);
+                return;
+            }
+        }
+    }
+
+    // Take the next buffered command and prepare its response, false if no complete line is buffered
+    // or a worker prepares it (connection.preparing), the loop writes it once it is in preparedResponses
+    private static boolean nextResponse(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        String command = takeLine(connection.input);
+        if (command == null) return false;
+
+        if (command.equals(KEEP_ALIVE)) {
+            connection.keepAlive = true;
+            connection.response = Response.of("ok\n");
+        } else if (isCached(command)) {
+            connection.response = handleCommand(command, connection.keepAlive);
+        } else {
+            connection.preparing = true;
+            boolean framed = connection.keepAlive;
+            Selector selector = key.selector();
+            preparePool.execute(() -> {
+                Response response;
+                try {
+                    response = handleCommand(command, framed);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    response = Response.of("error\n");
+                }
+                preparedResponses.add(new PreparedResponse(key, response));
+                selector.wakeup();
+            });
+            return false;
+        }
+        return true;
+    }
+
+    // True if command can be answered without hashing, compressing or indexing a file: every cache it needs has
+    // the file's current version (or the arena has the file), so the nio loop answers it itself
+    private static boolean isCached(String command) {
+        if (!command.startsWith("get ")) return true;
+        String[] parts = command.split(" ");
+        String filename = stripOptions(command.substring(4));
+        String[] range = splitRange(filename);
+        File file = new File(directory, range != null ? range[0] : filename);
+        boolean deflate = range == null && "deflate".equals(getOption(parts, "enc"));
+        try {
+            if (range != null) {
+                return range[1].equals("lines") ? lineIndexes.isCurrent(file) : digestCache.cached(file) != null;
+            }
+            if (!deflate && contentArena != null && contentArena.get(file) != null) return true;
+            // A missing file is answered at once, an existing one needs its digest and maybe its deflate form
+            if (!file.isFile()) return true;
+            return digestCache.cached(file) != null && (!deflate || compressedCache.isCached(file));
+        } catch (IOException | RuntimeException e) {
+            // Let the worker run the command and report what is wrong with it
+            return false;
+        }
+    }
+
+    // Remove and decode one "\n" terminated line from the buffer (in write mode), null if incomplete
+    private static String takeLine(ByteBuffer input) {
+        for (int i = 0; i < input.position(); i++) {
+            if (input.get(i) == '\n') {
+                byte[] line = new byte[i];
+                input.flip();
+                input.get(line);
+                input.get(); // '\n'
+                input.compact();
+                return new String(line, StandardCharsets.UTF_8).replace("\r", "");
+            }
+        }
+        return null;
+    }
+
+    private static int closeIdleConnections(Selector selector) throws IOException {
+        long now = System.currentTimeMillis();
+        int closed = 0;
+        for (SelectionKey key : selector.keys()) {
+            // A connection waiting for a worker is not idle, the worker just takes long
+            if (key.isValid() && key.attachment() instanceof Connection && !((Connection) key.attachment()).preparing
+                    && now - ((Connection) key.attachment()).lastActive > idleTimeout) {
+                System.out.println("[Warning] Closing idle connection");
+                closeConnection(key);
+                closed++;
+            }
+        }
+        return closed;
+    }
+
+    private static void closeConnection(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (connection.response != null) {
+            connection.response.close();
+        }
+        key.cancel();
+        key.channel().close();
+    }
+
+    // Process one command, shared by every serving mode
+    // framed: keep-alive connection, the index must carry its length because the connection stays open
+    // The time recorded is that of preparing the response, the bytes are written afterwards (transferTo)
+    private static Response handleCommand(String command, boolean framed) {
+        long start = System.nanoTime();
+        log("Received command: " + command);
+
+        if (command.equals("index")) {
+            Response response = handleIndexCommand(framed);
+            metrics.record("index", start);
+            return response;
+        } else if (command.startsWith("get ")) {
+            // get <filename> [enc=deflate] [if=<crc32c>], or get <filename> lines|bytes <range>
+            String[] parts = command.split(" ");
+            String filename = stripOptions(command.substring(4));
+            String[] range = splitRange(filename);
+            Response response = range != null
+                    ? handleRangeCommand(range[0], range[1], range[2])
+                    : handleGetCommand(filename, "deflate".equals(getOption(parts, "enc")), getOption(parts, "if"));
+            metrics.record("get", start);
+            return response;
+        } else if (command.equals("stats")) {
+            // The server only listens on the loopback address, so this is always a local client
+            return textResponse(metrics.report().getBytes(StandardCharsets.UTF_8), framed);
+        } else {
+            return Response.of("Unknown command\n");
+        }
+    }
+
+    private static Response handleIndexCommand(boolean framed) {
+        // The snapshot is already encoded as "name\n" lines, send it as is
+        return textResponse(directoryIndex.snapshot().bytes, framed);
+    }
+
+    // Multi-line text: raw until the connection closes, or "ok <size>" and the bytes on a keep-alive connection
+    private static Response textResponse(byte[] bytes, boolean framed) {
+        if (!framed) {
+            return new Response(ByteBuffer.wrap(bytes));
+        }
+        ByteBuffer header = ByteBuffer.wrap(("ok " + bytes.length + "\n").getBytes(StandardCharsets.UTF_8));
+        return new Response(header, ByteBuffer.wrap(bytes));
+    }
+
+    // Drop trailing known "key=value" tokens, what remains is the filename
+    private static String stripOptions(String text) {
+        String result = text.trim();
+        while (true) {
+            int space = result.lastIndexOf(' ');
+            if (space < 0) return result;
+            String last = result.substring(space + 1);
+            boolean isOption = false;
+            for (String key : GET_OPTION_KEYS) {
+                isOption |= last.startsWith(key + "=");
+            }
+            if (!isOption) return result;
+            result = result.substring(0, space).trim();
+        }
+    }
+
+    // "<filename> lines|bytes <a>-<b>" split into {filename, unit, range}, null if text does not end with a range
+    private static String[] splitRange(String text) {
+        int rangeSpace = text.lastIndexOf(' ');
+        if (rangeSpace < 0) return null;
+        int unitSpace = text.lastIndexOf(' ', rangeSpace - 1);
+        if (unitSpace < 0) return null;
+        String unit = text.substring(unitSpace + 1, rangeSpace);
+        String range = text.substring(rangeSpace + 1);
+        if (!(unit.equals("lines") || unit.equals("bytes")) || !range.contains("-")) return null;
+        return new String[]{text.substring(0, unitSpace).trim(), unit, range};
+    }
+
+    // Value of a trailing "key=value" token, or null if the command does not carry it
+    private static String getOption(String[] parts, String key) {
+        for (int i = parts.length - 1; i > 0; i--) {
+            if (parts[i].startsWith(key + "=")) {
+                return parts[i].substring(key.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    // Reply "ok <size> crc32c=<hex>\n" followed by exactly <size> raw bytes, or "error\n"
+    // deflate: the client accepts "ok <size> crc32c=<hex> enc=deflate\n" and <size> bytes of the deflate stream,
+    // the crc32c is still that of the original file
+    // ifVersion: crc32c of the client's cached copy, if the file still has it the reply is only "unchanged crc32c=<hex>\n"
+    private static Response handleGetCommand(String filename, boolean deflate, String ifVersion) {
         File fileToSend = new File(directory, filename);
 
-        if (fileToSend.exists() && fileToSend.isFile()) {
-            out.println("ok");
+        ContentArena.Entry stored = contentArena == null || deflate ? null : contentArena.get(fileToSend);
+        if (stored != null) {
+            // No stat and no open: the digest comes with the entry and the body is written straight from the arena
+            if (stored.digest().equals(ifVersion)) {
+                return Response.of("unchanged crc32c=" + stored.digest() + "\n");
+            }
+            ByteBuffer header = ByteBuffer.wrap(("ok " + stored.length() + " crc32c=" + stored.digest() + "\n").getBytes(StandardCharsets.UTF_8));
+            return new Response(header, stored.slice());
+        }
 
-            // Read the file and send it line by line
-            try (BufferedReader fileReader = new BufferedReader(new FileReader(fileToSend))) {
-                String line;
-                while ((line = fileReader.readLine()) != null) {
-                    out.println(line);
+        if (fileToSend.exists() && fileToSend.isFile()) {
+            try {
+                // Hashed on the first get of each file version only, later gets hit the cache
+                String digest = digestCache.digest(fileToSend);
+                if (digest == null) {
+                    return Response.of("error\n");
+                }
+                if (digest.equals(ifVersion)) {
+                    return Response.of("unchanged crc32c=" + digest + "\n");
+                }
+                byte[] deflated = deflate ? compressedCache.deflated(fileToSend) : null;
+                if (deflated != null) {
+                    ByteBuffer header = ByteBuffer.wrap(("ok " + deflated.length + " crc32c=" + digest + " enc=deflate\n").getBytes(StandardCharsets.UTF_8));
+                    // The cached array is shared, every response gets its own view of it
+                    return new Response(header, ByteBuffer.wrap(deflated));
                 }
+                FileChannel file = FileChannel.open(fileToSend.toPath(), StandardOpenOption.READ);
+                long size = file.size();
+                ByteBuffer header = ByteBuffer.wrap(("ok " + size + " crc32c=" + digest + "\n").getBytes(StandardCharsets.UTF_8));
+                // The content itself goes out with transferTo, byte for byte
+                return new Response(new ByteBuffer[]{header}, file, 0, size);
             } catch (IOException e) {
                 System.out.println("[Error] Read " + filename + " failed, e: " + e.getMessage());
+                return Response.of("error\n");
             }
         } else {
-            out.println("error");
+            return Response.of("error\n");
+        }
+    }
+
+    // lines <from>-<to> (1-based, inclusive), <from>- (to the end) or -<n> (the last n lines)
+    //   reply "ok <size> lines=<first>-<last> total=<line count>\n", lines=0-0 if the range holds no line
+    // bytes <offset>-<length> or <offset>- (to the end), the length is cut at the end of the file
+    //   reply "ok <size> bytes=<offset>-<size> total=<file size> crc32c=<hex>\n", the crc32c is that of the whole file
+    // followed by exactly <size> raw bytes, or "error\n"; enc= and if= do not apply to ranges
+    private static Response handleRangeCommand(String filename, String unit, String range) {
+        File fileToSend = new File(directory, filename);
+        if (!fileToSend.isFile()) {
+            return Response.of("error\n");
+        }
+
+        int dash = range.indexOf('-');
+        String left = range.substring(0, dash);
+        String right = range.substring(dash + 1);
+        try {
+            long start;
+            long end;
+            String status;
+            if (unit.equals("lines")) {
+                long from = left.isEmpty() ? -Long.parseLong(right) : Long.parseLong(left);
+                long to = left.isEmpty() || right.isEmpty() ? Long.MAX_VALUE : Long.parseLong(right);
+                // "--5" or "3--5" parse, but are no range
+                if (from == 0 || to < from || right.startsWith("-")) {
+                    return Response.of("error\n");
+                }
+                LineIndexCache.LineRange lines = lineIndexes.lineRange(fileToSend, from, to);
+                if (lines == null) {
+                    return Response.of("error\n");
+                }
+                start = lines.start;
+                end = lines.end;
+                status = "ok " + (end - start) + " lines=" + lines.firstLine + "-" + lines.lastLine + " total=" + lines.lineCount;
+            } else {
+                long offset = Long.parseLong(left);
+                long length = right.isEmpty() ? Long.MAX_VALUE : Long.parseLong(right);
+                if (offset < 0 || length < 0) {
+                    return Response.of("error\n");
+                }
+                String digest = digestCache.digest(fileToSend);
+                long size = fileToSend.length();
+                if (digest == null || offset > size) {
+                    return Response.of("error\n");
+                }
+                start = offset;
+                end = offset + Math.min(length, size - offset);
+                status = "ok " + (end - start) + " bytes=" + start + "-" + (end - start) + " total=" + size + " crc32c=" + digest;
+            }
+
+            FileChannel file = FileChannel.open(fileToSend.toPath(), StandardOpenOption.READ);
+            if (file.size() < end) {
+                // Truncated since the range was worked out
+                file.close();
+                return Response.of("error\n");
+            }
+            ByteBuffer header = ByteBuffer.wrap((status + "\n").getBytes(StandardCharsets.UTF_8));
+            return new Response(new ByteBuffer[]{header}, file, start, end - start);
+        } catch (NumberFormatException e) {
+            return Response.of("error\n");
+        } catch (IOException e) {
+            System.out.println("[Error] Read " + filename + " failed, e: " + e.getMessage());
+            return Response.of("error\n");
         }
     }
-}
\ No newline at end of file
+}
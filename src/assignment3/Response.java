@@ -0,0 +1,90 @@
+package assignment3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Response
+ * Bytes to send back for one command, written by either the blocking or the selector mode
+ * 1. In-memory buffers (status line, index, ...)
+ * 2. Optionally followed by a file region, sent with FileChannel.transferTo (sendfile, no user-space copy)
+ * writeTo() sends as much as the channel accepts, so a non-blocking channel can resume later
+ */
+class Response {
+
+    private final ByteBuffer[] buffers;
+    private final FileChannel file;
+    private long position;
+    private long remaining;
+    private long bytesWritten;
+
+    Response(ByteBuffer... buffers) {
+        this(buffers, null, 0, 0);
+    }
+
+    // Buffers first, then count bytes of file starting at position, the file is closed when done
+    Response(ByteBuffer[] buffers, FileChannel file, long position, long count) {
+        this.buffers = buffers;
+        this.file = file;
+        this.position = position;
+        this.remaining = count;
+    }
+
+    static Response of(String text) {
+        return new Response(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Returns true once every byte has been written
+    boolean writeTo(SocketChannel channel) throws IOException {
+        bytesWritten += channel.write(buffers);
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) return false;
+        }
+
+        while (remaining > 0) {
+            long sent = file.transferTo(position, remaining, channel);
+            if (sent <= 0) {
+                // Socket buffer is full (non-blocking) or the file shrank, try again later
+                if (position >= file.size()) {
+                    throw new IOException("File changed during transfer");
+                }
+                return false;
+            }
+            position += sent;
+            remaining -= sent;
+            bytesWritten += sent;
+        }
+
+        close();
+        return true;
+    }
+
+    // Blocking channels: keep writing until done
+    void writeFully(SocketChannel channel) throws IOException {
+        try {
+            while (!writeTo(channel)) {
+                // A blocking write may still return early, just continue
+            }
+        } finally {
+            close();
+        }
+    }
+
+    // Bytes handed to the channel so far, for the server's metrics
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    void close() {
+        if (file != null && file.isOpen()) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.out.println("[Warning] Close file failed, e: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package assignment4;
+
+/*
+ * BinaryRequest
+ * Fixed-size binary form of the chunk request, for clients that got a file handle from INFO ("bin=1" -> "handle=<n>")
+ *   [ magic 0xB5 (1) | version (1) | opcode (1) | flags (1) | session (4) | file handle (4) | chunk id (4) | chunk size (2) ]
+ * 1. The magic byte can not start a text command (ASCII) nor any UTF-8 text, so both forms share the port
+ * 2. flags: FLAG_CRC (crc=1), FLAG_DEFLATE (enc=deflate), the rest of the chunk layout is the session and chunk size
+ * 3. The server reads the fields straight out of the receive buffer, no String, split or parseInt per chunk,
+ *    and the handle is an index into a table, so the filename is never parsed again (names with spaces work too)
+ * All integers are big-endian, like the chunk header
+ */
+final class BinaryRequest {
+
+    static final byte MAGIC = (byte) 0xB5;
+    static final byte VERSION = 1;
+    // FETCH: one chunk of the file behind the handle, answered like "FETCH_FILE"
+    static final byte OP_FETCH = 1;
+    static final int FLAG_CRC = 1;
+    static final int FLAG_DEFLATE = 1 << 1;
+    static final int SIZE = 18;
+
+    private static final int VERSION_OFFSET = 1;
+    private static final int OPCODE_OFFSET = 2;
+    private static final int FLAGS_OFFSET = 3;
+    private static final int SESSION_OFFSET = 4;
+    private static final int HANDLE_OFFSET = 8;
+    private static final int CHUNK_ID_OFFSET = 12;
+    private static final int CHUNK_SIZE_OFFSET = 16;
+
+    private BinaryRequest() {
+    }
+
+    static boolean isBinary(byte[] request, int length) {
+        return length > 0 && request[0] == MAGIC;
+    }
+
+    // A request of a version and size this side understands
+    static boolean isValid(byte[] request, int length) {
+        return length >= SIZE && request[0] == MAGIC && request[VERSION_OFFSET] == VERSION;
+    }
+
+    // Write a FETCH request for chunkId in format into request (at least SIZE bytes), returns its length
+    static int putFetch(byte[] request, ChunkFormat format, int handle, int chunkId) {
+        request[0] = MAGIC;
+        request[VERSION_OFFSET] = VERSION;
+        request[OPCODE_OFFSET] = OP_FETCH;
+        request[FLAGS_OFFSET] = (byte) ((format.crc ? FLAG_CRC : 0) | (format.deflate ? FLAG_DEFLATE : 0));
+        putInt(request, SESSION_OFFSET, format.session);
+        putInt(request, HANDLE_OFFSET, handle);
+        putInt(request, CHUNK_ID_OFFSET, chunkId);
+        request[CHUNK_SIZE_OFFSET] = (byte) (format.chunkSize >>> 8);
+        request[CHUNK_SIZE_OFFSET + 1] = (byte) format.chunkSize;
+        return SIZE;
+    }
+
+    static int getOpcode(byte[] request) {
+        return request[OPCODE_OFFSET];
+    }
+
+    static int getFlags(byte[] request) {
+        return request[FLAGS_OFFSET] & 0xFF;
+    }
+
+    static int getSession(byte[] request) {
+        return getInt(request, SESSION_OFFSET);
+    }
+
+    static int getHandle(byte[] request) {
+        return getInt(request, HANDLE_OFFSET);
+    }
+
+    static int getChunkId(byte[] request) {
+        return getInt(request, CHUNK_ID_OFFSET);
+    }
+
+    static int getChunkSize(byte[] request) {
+        return (request[CHUNK_SIZE_OFFSET] & 0xFF) << 8 | (request[CHUNK_SIZE_OFFSET + 1] & 0xFF);
+    }
+
+    private static void putInt(byte[] request, int offset, int value) {
+        request[offset] = (byte) (value >>> 24);
+        request[offset + 1] = (byte) (value >>> 16);
+        request[offset + 2] = (byte) (value >>> 8);
+        request[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] request, int offset) {
+        return (request[offset] & 0xFF) << 24 | (request[offset + 1] & 0xFF) << 16
+                | (request[offset + 2] & 0xFF) << 8 | (request[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,192 @@
+package assignment4;
+
+import common.DigestCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*
+ * ChunkFile
+ * Writes received chunks straight into the target file with positional FileChannel writes, in any order
+ * Progress is kept next to it in "<target>.part": total chunks (int), chunk size (int), version (UTF), then one bit per chunk
+ * 1. The bitmap is written after the chunk data, every FLUSH_INTERVAL chunks and on close
+ *    so after a crash it may miss chunks that are on disk (fetched again), but never claims one that is not
+ * 2. open() resumes when the sidecar matches the transfer (same chunk count, size and file version), otherwise starts at chunk 0
+ * 3. The sidecar is deleted once every chunk is there
+ * Memory use is one bit per chunk, the file data never stays in memory
+ */
+class ChunkFile implements ChunkSink {
+
+    static final String PART_SUFFIX = ".part";
+    // Chunks written between two bitmap flushes
+    private static final int FLUSH_INTERVAL = 256;
+
+    private final File target;
+    private final File partFile;
+    private final FileChannel data;
+    private final FileChannel part;
+    private final int chunkSize;
+    // Bytes before the bitmap in the sidecar
+    private final int partHeaderSize;
+    private final byte[] bitmap;
+    private int receivedCount;
+    private int unflushed;
+    // Byte range of the bitmap changed since the last flush, dirtyFrom > dirtyTo when clean
+    private int dirtyFrom = Integer.MAX_VALUE;
+    private int dirtyTo = -1;
+    private boolean completed;
+
+    private ChunkFile(File target, File partFile, FileChannel data, FileChannel part, int chunkSize, int partHeaderSize, byte[] bitmap) {
+        this.target = target;
+        this.partFile = partFile;
+        this.data = data;
+        this.part = part;
+        this.chunkSize = chunkSize;
+        this.partHeaderSize = partHeaderSize;
+        this.bitmap = bitmap;
+        for (byte b : bitmap) {
+            receivedCount += Integer.bitCount(b & 0xFF);
+        }
+    }
+
+    // version: the server's digest of the file, chunks of another version are never mixed in
+    static ChunkFile open(File target, int totalChunks, int chunkSize, String version) throws IOException {
+        File partFile = new File(target.getPath() + PART_SUFFIX);
+        byte[] header = partHeader(totalChunks, chunkSize, version == null ? "" : version);
+        byte[] bitmap = new byte[(totalChunks + 7) / 8];
+        boolean resume = target.isFile() && partFile.isFile() && readBitmap(partFile, header, bitmap);
+
+        FileChannel data = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileChannel part = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            if (!resume) {
+                // No usable progress, whatever is in the target is from another transfer
+                data.truncate(0);
+                part.truncate(0);
+                writeFully(part, ByteBuffer.wrap(header), 0);
+                writeFully(part, ByteBuffer.wrap(bitmap), header.length);
+            }
+        } catch (IOException e) {
+            data.close();
+            part.close();
+            throw e;
+        }
+        return new ChunkFile(target, partFile, data, part, chunkSize, header.length, bitmap);
+    }
+
+    private static byte[] partHeader(int totalChunks, int chunkSize, String version) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(totalChunks);
+        out.writeInt(chunkSize);
+        out.writeUTF(version);
+        return bytes.toByteArray();
+    }
+
+    // Loads the bitmap if the sidecar starts with exactly this header, i.e. belongs to the same transfer
+    private static boolean readBitmap(File partFile, byte[] header, byte[] bitmap) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(partFile))) {
+            byte[] existing = new byte[header.length];
+            in.readFully(existing);
+            if (!Arrays.equals(existing, header)) {
+                return false;
+            }
+            in.readFully(bitmap);
+            return true;
+        } catch (EOFException e) {
+            return false; // Truncated sidecar, start over
+        } catch (IOException e) {
+            System.out.println("[Warning] Reading " + partFile + " failed, e: " + e.getMessage());
+            return false;
+        }
+    }
+
+    int getReceivedCount() {
+        return receivedCount;
+    }
+
+    File getTarget() {
+        return target;
+    }
+
+    @Override
+    public boolean has(int chunkId) {
+        return (bitmap[chunkId >>> 3] & (1 << (chunkId & 7))) != 0;
+    }
+
+    @Override
+    public void write(int chunkId, byte[] buffer, int offset, int length) throws IOException {
+        if (has(chunkId)) return;
+
+        writeFully(data, ByteBuffer.wrap(buffer, offset, length), (long) chunkId * chunkSize);
+
+        int index = chunkId >>> 3;
+        bitmap[index] |= (byte) (1 << (chunkId & 7));
+        dirtyFrom = Math.min(dirtyFrom, index);
+        dirtyTo = Math.max(dirtyTo, index);
+        receivedCount++;
+        if (++unflushed >= FLUSH_INTERVAL) {
+            flushBitmap();
+        }
+    }
+
+    // Read back through the page cache, only called once the transfer is complete
+    @Override
+    public long crc32c() throws IOException {
+        return DigestCache.crc32c(target.toPath());
+    }
+
+    @Override
+    public void complete() throws IOException {
+        completed = true;
+        data.close();
+        part.close();
+        Files.deleteIfExists(partFile.toPath());
+    }
+
+    @Override
+    public void discard() throws IOException {
+        completed = true;
+        data.close();
+        part.close();
+        Files.deleteIfExists(partFile.toPath());
+        Files.deleteIfExists(target.toPath());
+    }
+
+    // Keeps the sidecar so the next get of the same file resumes
+    @Override
+    public void close() throws IOException {
+        if (completed) return;
+        try {
+            flushBitmap();
+        } finally {
+            data.close();
+            part.close();
+        }
+    }
+
+    private void flushBitmap() throws IOException {
+        if (dirtyFrom <= dirtyTo) {
+            writeFully(part, ByteBuffer.wrap(bitmap, dirtyFrom, dirtyTo - dirtyFrom + 1), partHeaderSize + dirtyFrom);
+        }
+        dirtyFrom = Integer.MAX_VALUE;
+        dirtyTo = -1;
+        unflushed = 0;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
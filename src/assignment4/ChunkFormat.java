@@ -0,0 +1,120 @@
+package assignment4;
+
+import java.util.zip.CRC32C;
+
+/*
+ * ChunkFormat
+ * Layout of the chunk packets of one transfer, negotiated with the "chunk=<size>", "session=<id>" and "crc=1" request options
+ *   [ sequence number (4) | session id (4, only with session) | CRC32C (4, only with crc=1) | data (up to chunkSize) ]
+ * All integers are big-endian, the CRC covers everything before it and the data, so a damaged header is caught as well
+ * With "enc=deflate" the chunks are cut from the deflate-compressed file instead of the file itself
+ */
+final class ChunkFormat {
+
+    // Chunk size of servers and clients that do not negotiate one
+    static final int DEFAULT_CHUNK_SIZE = 1024;
+    static final int SEQUENCE_SIZE = 4;
+    static final int SESSION_SIZE = 4;
+    static final int CRC_SIZE = 4;
+    // Header of the largest layout, what packet buffers have to leave room for
+    static final int MAX_HEADER_SIZE = SEQUENCE_SIZE + SESSION_SIZE + CRC_SIZE;
+    // Reset before every packet, so checksumming a chunk allocates nothing
+    private static final ThreadLocal<CRC32C> checksums = ThreadLocal.withInitial(CRC32C::new);
+
+    final int chunkSize;
+    final boolean crc;
+    // Transfer this chunk belongs to, 0 for none
+    final int session;
+    // Chunks carry the deflate stream of the file
+    final boolean deflate;
+
+    ChunkFormat(int chunkSize, boolean crc, int session, boolean deflate) {
+        this.chunkSize = chunkSize;
+        this.crc = crc;
+        this.session = session;
+        this.deflate = deflate;
+    }
+
+    // Layout the server accepted, missing options in the reply mean the defaults of an older server
+    static ChunkFormat fromReply(String[] reply) {
+        String chunk = UDPClient.getOption(reply, "chunk");
+        String session = UDPClient.getOption(reply, "session");
+        return new ChunkFormat(chunk == null ? DEFAULT_CHUNK_SIZE : Integer.parseInt(chunk),
+                "1".equals(UDPClient.getOption(reply, "crc")),
+                session == null ? 0 : Integer.parseInt(session),
+                "deflate".equals(UDPClient.getOption(reply, "enc")));
+    }
+
+    // Options repeated on every fetch and NACK, so each chunk comes in this layout
+    String requestOptions() {
+        return (chunkSize == DEFAULT_CHUNK_SIZE ? "" : " chunk=" + chunkSize)
+                + (crc ? " crc=1" : "")
+                + (session == 0 ? "" : " session=" + session)
+                + (deflate ? " enc=deflate" : "");
+    }
+
+    boolean matches(int chunkSize, boolean crc, int session, boolean deflate) {
+        return this.chunkSize == chunkSize && this.crc == crc && this.session == session && this.deflate == deflate;
+    }
+
+    int headerSize() {
+        return crcOffset() + (crc ? CRC_SIZE : 0);
+    }
+
+    // Fill in the header for the dataLength bytes already placed after it
+    void putHeader(byte[] packet, int chunkId, int dataLength) {
+        putInt(packet, 0, chunkId);
+        if (session != 0) {
+            putInt(packet, SEQUENCE_SIZE, session);
+        }
+        if (crc) {
+            putInt(packet, crcOffset(), (int) checksum(packet, dataLength));
+        }
+    }
+
+    static int getSequence(byte[] packet) {
+        return getInt(packet, 0);
+    }
+
+    // Session id of a packet sent with a session
+    static int getSession(byte[] packet) {
+        return getInt(packet, SEQUENCE_SIZE);
+    }
+
+    // False if the packet was damaged on the way, always true without crc
+    boolean verify(byte[] packet, int length) {
+        if (length < headerSize()) return false;
+        if (!crc) return true;
+        return getInt(packet, crcOffset()) == (int) checksum(packet, length - headerSize());
+    }
+
+    // False for packets of another transfer, e.g. late chunks of an earlier one
+    boolean belongs(byte[] packet) {
+        return session == 0 || getSession(packet) == session;
+    }
+
+    private int crcOffset() {
+        return SEQUENCE_SIZE + (session != 0 ? SESSION_SIZE : 0);
+    }
+
+    private long checksum(byte[] packet, int dataLength) {
+        CRC32C checksum = checksums.get();
+        checksum.reset();
+        checksum.update(packet, 0, crcOffset());
+        checksum.update(packet, headerSize(), dataLength);
+        return checksum.getValue();
+    }
+
+    // Same layout as ByteBuffer.putInt / getInt
+    private static void putInt(byte[] packet, int offset, int value) {
+        packet[offset] = (byte) (value >>> 24);
+        packet[offset + 1] = (byte) (value >>> 16);
+        packet[offset + 2] = (byte) (value >>> 8);
+        packet[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] packet, int offset) {
+        return (packet[offset] & 0xFF) << 24 | (packet[offset + 1] & 0xFF) << 16
+                | (packet[offset + 2] & 0xFF) << 8 | (packet[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,37 @@
+package assignment4;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Where a transfer puts received chunks, chunks may arrive in any order but each one is written once
+interface ChunkSink extends Closeable {
+
+    void write(int chunkId, byte[] data, int offset, int length) throws IOException;
+
+    // True if the chunk is already stored, e.g. by an earlier interrupted transfer
+    default boolean has(int chunkId) {
+        return false;
+    }
+
+    // CRC32C of everything written so far in file order, to check against the server's whole-file digest
+    long crc32c() throws IOException;
+
+    // Called once after every chunk has been written
+    default void complete() throws IOException {
+    }
+
+    // Called instead of complete() when the result is known to be wrong, nothing of it should be kept
+    default void discard() throws IOException {
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    // Creates the sink once the info reply tells how many chunks of which size will come
+    // version identifies the file content (its crc32c), null if the server did not send one
+    // deflated: the chunks carry the deflate stream of the file ("enc=deflate")
+    interface Factory {
+        ChunkSink open(int totalChunks, int chunkSize, String version, boolean deflated) throws IOException;
+    }
+}
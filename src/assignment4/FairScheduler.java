@@ -0,0 +1,188 @@
+package assignment4;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * FairScheduler
+ * Bounded replacement for a fixed thread pool, requests are queued per client address
+ * 1. Admission: every client has a token bucket (rate requests per second, burst deep),
+ *    a request without a token is rejected (throttled)
+ * 2. Bounds: at most maxPerClient requests of one client and maxQueued in total are waiting,
+ *    anything beyond is rejected (shed) instead of growing the queue
+ * 3. Service: workers take one request per client in turn (round-robin over the clients with work,
+ *    deficit round-robin with a quantum of one request), so a client with a long queue only delays
+ *    the others by one request each round
+ * A rejected submit returns how long the client should wait, the caller tells the client (busy retry=<ms>)
+ */
+class FairScheduler {
+
+    // Bounds of the retry-after hint sent with a rejection
+    private static final long MIN_RETRY_AFTER = 10;
+    private static final long MAX_RETRY_AFTER = 1000;
+    // Idle clients (empty queue, full bucket) are forgotten after this long
+    private static final long IDLE_EXPIRY = 60_000_000_000L; // ns
+
+    private final int maxQueued;
+    private final int maxPerClient;
+    private final double rate;
+    private final double burst;
+    private final int workers;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Map<InetAddress, Client> clients = new HashMap<>();
+    // Clients with queued requests, in service order
+    private final ArrayDeque<Client> ready = new ArrayDeque<>();
+    private int queued;
+    private int peakQueued;
+    private long completed;
+    private long shed;
+    private long throttled;
+    // Moving average of the time one request takes to run, for the retry-after hint
+    private double averageServiceNanos = 1_000_000;
+    private long lastExpiry = System.nanoTime();
+
+    private static final class Client {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        double tokens;
+        long lastRefill; // ns
+
+        Client(double tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+    }
+
+    // rate: requests per second one client may sustain, burst: how many it may send at once
+    FairScheduler(String name, int workers, int maxQueued, int maxPerClient, double rate, int burst) {
+        this.workers = Math.max(1, workers);
+        this.maxQueued = maxQueued;
+        this.maxPerClient = maxPerClient;
+        this.rate = rate;
+        this.burst = burst;
+
+        for (int i = 0; i < this.workers; i++) {
+            Thread thread = new Thread(this::work, name + "-" + i);
+            thread.start();
+        }
+    }
+
+    // Returns 0 if the task was queued, otherwise the ms the client should wait before trying again
+    long submit(SocketAddress address, Runnable task) {
+        InetAddress key = address instanceof InetSocketAddress ? ((InetSocketAddress) address).getAddress() : null;
+        long now = System.nanoTime();
+
+        lock.lock();
+        try {
+            expireIdle(now);
+            Client client = clients.computeIfAbsent(key, k -> new Client(burst, now));
+
+            client.tokens = Math.min(burst, client.tokens + (now - client.lastRefill) / 1e9 * rate);
+            client.lastRefill = now;
+            if (client.tokens < 1) {
+                throttled++;
+                // Until the bucket has a token again
+                return clamp((long) Math.ceil((1 - client.tokens) / rate * 1000));
+            }
+            if (client.tasks.size() >= maxPerClient || queued >= maxQueued) {
+                shed++;
+                // Until the workers have worked off the current backlog
+                return clamp((long) (queued * averageServiceNanos / workers / 1_000_000));
+            }
+
+            client.tokens -= 1;
+            if (client.tasks.isEmpty()) {
+                ready.add(client);
+            }
+            client.tasks.add(task);
+            queued++;
+            peakQueued = Math.max(peakQueued, queued);
+            notEmpty.signal();
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // One line of counters, e.g. for the server's periodic report
+    String describe() {
+        lock.lock();
+        try {
+            return String.format("queue %d/%d (peak %d), %d clients, %d done, %d shed, %d throttled",
+                    queued, maxQueued, peakQueued, clients.size(), completed, shed, throttled);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Runnable task;
+            lock.lock();
+            try {
+                while (ready.isEmpty()) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                // Take one request of the next client, it goes to the back of the line if it has more
+                Client client = ready.poll();
+                task = client.tasks.poll();
+                if (!client.tasks.isEmpty()) {
+                    ready.add(client);
+                }
+                queued--;
+            } finally {
+                lock.unlock();
+            }
+
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            lock.lock();
+            try {
+                completed++;
+                averageServiceNanos += (elapsed - averageServiceNanos) / 16;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Drop the state of clients that have been quiet for a while, at most once per second
+    private void expireIdle(long now) {
+        if (now - lastExpiry < 1_000_000_000L) return;
+        lastExpiry = now;
+        Iterator<Client> it = clients.values().iterator();
+        while (it.hasNext()) {
+            Client client = it.next();
+            if (client.tasks.isEmpty() && now - client.lastRefill > IDLE_EXPIRY) {
+                it.remove();
+            }
+        }
+    }
+
+    private static long clamp(long retryAfter) {
+        return Math.max(MIN_RETRY_AFTER, Math.min(MAX_RETRY_AFTER, retryAfter));
+    }
+}
@@ -0,0 +1,59 @@
+package assignment4;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * FileHandles
+ * Integer handles for the files clients asked INFO about, so binary chunk requests name a file without a string
+ * 1. A path gets its handle on the first INFO and keeps it for the life of the server
+ * 2. Handle = random epoch (high bits) | index into an array, a lookup is one array read and never allocates
+ * 3. A handle of an earlier server process (other epoch) or an unknown index resolves to null
+ * At most MAX_HANDLES paths get one, later ones are served by the text requests only
+ */
+class FileHandles {
+
+    private static final int INDEX_BITS = 20;
+    private static final int MAX_HANDLES = 1 << INDEX_BITS;
+    private static final int INDEX_MASK = MAX_HANDLES - 1;
+
+    // Differs between server runs, so a client still holding a handle from before a restart gets an error
+    private final int epoch = ThreadLocalRandom.current().nextInt() << INDEX_BITS;
+    private final Map<String, Integer> byPath = new HashMap<>();
+    // Grown by copying, readers see either the old or the new array, both hold every handle given out before
+    private volatile AtomicReferenceArray<File> files = new AtomicReferenceArray<>(64);
+    private int count;
+
+    // Handle of file, -1 if the table is full
+    synchronized int handle(File file) {
+        Integer known = byPath.get(file.getPath());
+        if (known != null) return known;
+        if (count == MAX_HANDLES) return -1;
+
+        AtomicReferenceArray<File> current = files;
+        if (count == current.length()) {
+            AtomicReferenceArray<File> grown = new AtomicReferenceArray<>(Math.min(MAX_HANDLES, count * 2));
+            for (int i = 0; i < count; i++) {
+                grown.set(i, current.get(i));
+            }
+            files = grown;
+            current = grown;
+        }
+        current.set(count, file);
+        int handle = epoch | count;
+        count++;
+        byPath.put(file.getPath(), handle);
+        return handle;
+    }
+
+    // The file behind handle, null if this server never gave it out
+    File get(int handle) {
+        if ((handle & ~INDEX_MASK) != epoch) return null;
+        AtomicReferenceArray<File> current = files;
+        int index = handle & INDEX_MASK;
+        return index < current.length() ? current.get(index) : null;
+    }
+}
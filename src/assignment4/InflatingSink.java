@@ -0,0 +1,111 @@
+package assignment4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/*
+ * InflatingSink
+ * Receives the chunks of an "enc=deflate" transfer, the original bytes come out once every chunk is there
+ * 1. The compressed chunks are kept in memory, or in a resumable ChunkFile "<target>.deflate" with --out
+ * 2. crc32c() inflates them into the output and checksums the inflated bytes,
+ *    so the result is checked against the digest of the original file like an uncompressed transfer
+ * 3. complete() drops the compressed copy, discard() drops both
+ */
+class InflatingSink implements ChunkSink {
+
+    static final String DEFLATE_SUFFIX = ".deflate";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ChunkSink compressed;
+    // Memory mode: the compressed bytes and where the inflated ones go
+    private final ByteArrayOutputStream compressedBytes;
+    private final ByteArrayOutputStream memory;
+    // File mode: the compressed ChunkFile and the file the inflated bytes go to
+    private final ChunkFile compressedFile;
+    private final File target;
+
+    // Inflate into memory, e.g. to print the file
+    InflatingSink(ByteArrayOutputStream memory) {
+        this.compressedBytes = new ByteArrayOutputStream();
+        this.compressed = new OrderedSink(compressedBytes);
+        this.memory = memory;
+        this.compressedFile = null;
+        this.target = null;
+    }
+
+    // Inflate into target once compressedFile, opened on the ".deflate" file next to it, is complete
+    InflatingSink(ChunkFile compressedFile, File target) {
+        this.compressed = compressedFile;
+        this.compressedFile = compressedFile;
+        this.target = target;
+        this.compressedBytes = null;
+        this.memory = null;
+    }
+
+    @Override
+    public void write(int chunkId, byte[] data, int offset, int length) throws IOException {
+        compressed.write(chunkId, data, offset, length);
+    }
+
+    @Override
+    public boolean has(int chunkId) {
+        return compressed.has(chunkId);
+    }
+
+    // Only called once every chunk is there, this is where the file is inflated
+    @Override
+    public long crc32c() throws IOException {
+        CRC32C crc = new CRC32C();
+        InputStream source = compressedFile != null
+                ? new FileInputStream(compressedFile.getTarget())
+                : new ByteArrayInputStream(compressedBytes.toByteArray());
+        if (memory != null) {
+            memory.reset();
+        }
+        Inflater inflater = new Inflater();
+        try (InputStream in = new InflaterInputStream(source, inflater, BUFFER_SIZE);
+             OutputStream out = new CheckedOutputStream(target != null ? new FileOutputStream(target) : memory, crc)) {
+            in.transferTo(out);
+        } catch (ZipException e) {
+            // Not a valid deflate stream, never matches an 8 digit digest
+            System.out.println("[Error] Compressed data does not inflate, e: " + e.getMessage());
+            return -1;
+        } finally {
+            inflater.end();
+        }
+        return crc.getValue();
+    }
+
+    @Override
+    public void complete() throws IOException {
+        compressed.complete();
+        if (compressedFile != null) {
+            Files.deleteIfExists(compressedFile.getTarget().toPath());
+        }
+    }
+
+    @Override
+    public void discard() throws IOException {
+        compressed.discard();
+        if (target != null) {
+            Files.deleteIfExists(target.toPath());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        compressed.close();
+    }
+}
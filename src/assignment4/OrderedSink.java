@@ -0,0 +1,48 @@
+package assignment4;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+// Writes chunks to a stream in chunk order, chunks that arrive early wait until the gap before them is filled
+class OrderedSink implements ChunkSink {
+
+    private final OutputStream out;
+    // Chunks received out of order, bounded by the transfer window
+    private final Map<Integer, byte[]> outOfOrder = new HashMap<>();
+    private int next = 0;
+    // Updated with every byte written, in order
+    private final CRC32C crc = new CRC32C();
+
+    OrderedSink(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int chunkId, byte[] data, int offset, int length) throws IOException {
+        if (chunkId != next) {
+            byte[] copy = new byte[length];
+            System.arraycopy(data, offset, copy, 0, length);
+            outOfOrder.put(chunkId, copy);
+            return;
+        }
+
+        out.write(data, offset, length);
+        crc.update(data, offset, length);
+        next++;
+        // Flush everything that was waiting for this chunk
+        byte[] waiting;
+        while ((waiting = outOfOrder.remove(next)) != null) {
+            out.write(waiting);
+            crc.update(waiting);
+            next++;
+        }
+    }
+
+    @Override
+    public long crc32c() {
+        return crc.getValue();
+    }
+}
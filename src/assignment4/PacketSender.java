@@ -0,0 +1,9 @@
+package assignment4;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+// Where a request handler sends its reply packets, implemented by both server engines
+interface PacketSender {
+    void send(byte[] data, int length, SocketAddress target) throws IOException;
+}
@@ -0,0 +1,66 @@
+package assignment4;
+
+import java.io.File;
+import java.net.SocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * RecentStreams
+ * The STREAM pushes started lately, so a NACK is only honoured for a transfer its sender really started
+ * 1. Keyed by client address and session id, a NACK from another address or with another session finds nothing
+ * 2. Each entry keeps the file, its chunk count and the layout of the push, repairs are sent in the same layout
+ * 3. An entry expires TTL after the STREAM or its last NACK, the oldest entries go first once MAX_STREAMS are known
+ */
+class RecentStreams {
+
+    private static final int MAX_STREAMS = 4096;
+    private static final long TTL = 60_000; // ms
+
+    static final class Stream {
+        final File file;
+        final long totalChunks;
+        final ChunkFormat format;
+        long lastUsed;
+
+        Stream(File file, long totalChunks, ChunkFormat format) {
+            this.file = file;
+            this.totalChunks = totalChunks;
+            this.format = format;
+        }
+    }
+
+    // Access order, so the eldest entry is the one idle for longest
+    private final Map<String, Stream> streams = new LinkedHashMap<String, Stream>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Stream> eldest) {
+            return size() > MAX_STREAMS;
+        }
+    };
+
+    synchronized void started(SocketAddress client, File file, long totalChunks, ChunkFormat format) {
+        Stream stream = new Stream(file, totalChunks, format);
+        stream.lastUsed = System.currentTimeMillis();
+        streams.put(key(client, format.session), stream);
+    }
+
+    // Stream the client started with session, null if there is none or it expired
+    synchronized Stream find(SocketAddress client, int session) {
+        String key = key(client, session);
+        Stream stream = streams.get(key);
+        if (stream == null) return null;
+        long now = System.currentTimeMillis();
+        if (now - stream.lastUsed > TTL) {
+            streams.remove(key);
+            return null;
+        }
+        stream.lastUsed = now;
+        return stream;
+    }
+
+    private static String key(SocketAddress client, int session) {
+        return client + "#" + session;
+    }
+}
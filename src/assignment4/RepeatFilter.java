@@ -0,0 +1,47 @@
+package assignment4;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * RepeatFilter
+ * Tells whether a chunk request was seen shortly before, i.e. the client is retransmitting it
+ * 1. Direct-mapped table of SLOTS longs: a request (client, session, file key, chunk) hashes to one slot,
+ *    the slot keeps a 40 bit fingerprint of the last request there and the second it was seen
+ * 2. Same fingerprint within WINDOW_SECONDS: a repeat, anything else just takes over the slot
+ * 3. One getAndSet per request, no lock and no allocation
+ * Approximate by design: a request pushed out of its slot by another one is not recognized (missed repeat),
+ * two requests with the same fingerprint in one slot are counted as a repeat (about one in 2^40)
+ */
+class RepeatFilter {
+
+    private static final int SLOT_BITS = 16;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int TIME_BITS = 24;
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+    // A request again after longer than this is a new download rather than a retransmission
+    private static final long WINDOW_SECONDS = 10;
+
+    private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+
+    // Remember this request, returns true if the same one was seen in the last WINDOW_SECONDS
+    // fileKey: anything that stays the same for a file, e.g. the hash of its name or its handle
+    boolean isRepeat(SocketAddress client, int session, int fileKey, int chunkId) {
+        long hash = mix(((long) client.hashCode() << 32) ^ session * 0x9E3779B9L ^ (long) fileKey * 31 + chunkId);
+        int slot = (int) (hash & (SLOTS - 1));
+        long fingerprint = hash >>> TIME_BITS;
+        long now = (System.currentTimeMillis() / 1000) & TIME_MASK;
+
+        long previous = slots.getAndSet(slot, fingerprint << TIME_BITS | now);
+        if (previous == 0 || previous >>> TIME_BITS != fingerprint) return false;
+        // Seconds since the slot was written, the time field wraps after 2^24 s
+        return ((now - (previous & TIME_MASK)) & TIME_MASK) <= WINDOW_SECONDS;
+    }
+
+    // Finalizer of SplitMix64, spreads every input bit over the whole hash
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
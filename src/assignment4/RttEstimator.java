@@ -0,0 +1,59 @@
+package assignment4;
+
+/*
+ * RttEstimator
+ * Retransmission timeout from measured round trips (same rules as TCP, RFC 6298)
+ * 1. First sample:  SRTT = R, RTTVAR = R / 2
+ * 2. Later samples: RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|, SRTT = 7/8 SRTT + 1/8 R
+ * 3. RTO = SRTT + 4 * RTTVAR, clamped to [minRto, maxRto]
+ * 4. Every timeout doubles the RTO (exponential backoff) until the next sample
+ * Only chunks that were sent once are sampled (Karn), a retransmitted chunk's RTT is ambiguous
+ */
+class RttEstimator {
+
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final int K = 4;
+
+    private final long minRto;
+    private final long maxRto;
+
+    private double srtt = -1;
+    private double rttvar;
+    private double minRtt = Double.MAX_VALUE;
+    private long rto;
+
+    RttEstimator(long initialRto, long minRto, long maxRto) {
+        this.rto = initialRto;
+        this.minRto = minRto;
+        this.maxRto = maxRto;
+    }
+
+    // Add one round trip measurement (ms)
+    void sample(double rtt) {
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+        minRtt = Math.min(minRtt, rtt);
+        rto = Math.max(minRto, Math.min(maxRto, (long) Math.ceil(srtt + Math.max(1, K * rttvar))));
+    }
+
+    // A retransmission timer expired
+    void backoff() {
+        rto = Math.min(maxRto, rto * 2);
+    }
+
+    long getRto() {
+        return rto;
+    }
+
+    @Override
+    public String toString() {
+        if (srtt < 0) return "rtt n/a, rto " + rto + " ms";
+        return String.format("srtt %.2f ms, min rtt %.2f ms, rttvar %.2f ms, rto %d ms", srtt, minRtt, rttvar, rto);
+    }
+}
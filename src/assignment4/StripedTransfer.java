@@ -0,0 +1,560 @@
+package assignment4;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * StripedTransfer
+ * One file fetched from several replica servers (same directory, different endpoints) at once, over one DatagramSocket
+ * 1. INFO goes to every replica first, each with a session of its own; all replicas that answer must report the same
+ *    chunk count, chunk size, encoding and crc32c, otherwise they serve different versions and nothing is fetched
+ *    A replica still silent after one retry is left out once another one has answered
+ * 2. Every replica has its own RTT estimate and congestion window (AIMD, like WindowedTransfer); free window slots are
+ *    filled from one shared pool of chunk ids, the replica with the highest measured rate first. A replica gets a new
+ *    chunk whenever it delivers one, so its share of the file follows the rate it delivers at
+ * 3. A chunk whose request times out is not asked of the same replica again, it goes back to the pool for whichever
+ *    replica has room first; a replica that delivers nothing for giveUp ms is dropped and all its chunks go back
+ * 4. A chunk that waits on one replica for HEDGE_RTOS of another replica's RTOs (one RTO once the pool is empty)
+ *    is requested from that replica as well, once; the copy that arrives first is kept, so a slow replica does not
+ *    hold up the end of the file
+ * The transfer fails if every replica is dropped or a chunk is still missing giveUp ms after it was first requested
+ */
+class StripedTransfer {
+
+    // Largest UDP payload over IPv4, every reply fits
+    private static final int MAX_DATAGRAM = 65507;
+    private static final double INITIAL_CWND = 4;
+    // Delivery rates are measured over intervals of this length and smoothed
+    private static final long RATE_INTERVAL = 100; // ms
+    private static final double RATE_WEIGHT = 0.5;
+    private static final int HEDGE_RTOS = 2;
+
+    private static final class Replica {
+        final InetSocketAddress address;
+        final int session = UDPClient.newSession();
+        final RttEstimator rtt;
+
+        // INFO reply, null until it came
+        String info;
+        long infoSentAt; // ns
+        ChunkFormat format;
+        WindowedTransfer.ChunkRequester requester;
+
+        // Chunk id -> retransmission deadline (ms), in the order the chunks were requested
+        final LinkedHashMap<Integer, Long> inFlight = new LinkedHashMap<>();
+        // Chunk id -> time (ns) of the request
+        final Map<Integer, Long> sentAt = new HashMap<>();
+        // Chunks asked of this replica before, and those asked more than once (their RTT is not sampled)
+        final BitSet requested = new BitSet();
+        final BitSet repeated = new BitSet();
+        double cwnd = INITIAL_CWND;
+        double ssthresh;
+        long busyUntil; // ms
+        long lastDelivery; // ms
+        boolean dropped;
+
+        long chunks;
+        long bytes;
+        long timeouts;
+        // Smoothed delivery rate (bytes/s) and the interval being measured
+        double rate;
+        long intervalStart; // ms
+        long intervalBytes;
+
+        Replica(InetSocketAddress address, RttEstimator rtt) {
+            this.address = address;
+            this.rtt = rtt;
+        }
+
+        String name() {
+            return address.getHostString() + ":" + address.getPort();
+        }
+    }
+
+    private final DatagramSocket socket;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final Map<Integer, Replica> bySession = new HashMap<>();
+    private final int maxWindow;
+    private final long giveUp;
+    private final int maxInfoRetries;
+    // Started with the first chunk request, the INFO exchange does not count
+    private TransferStats stats;
+
+    private int totalChunks;
+    private int receivedCount;
+    private final BitSet received = new BitSet();
+    // Pool of chunks nobody has: given back by timeouts and dropped replicas first, then from nextChunk on
+    private final Deque<Integer> returned = new ArrayDeque<>();
+    private int nextChunk;
+    // Chunks already requested from a second replica
+    private final BitSet hedged = new BitSet();
+    // Chunk id -> time (ns) it was first requested, for giving up
+    private final Map<Integer, Long> firstSentAt = new HashMap<>();
+
+    // giveUp: ms a chunk may stay missing, maxInfoRetries: INFO rounds before replicas that do not answer are left out
+    StripedTransfer(DatagramSocket socket, List<InetSocketAddress> addresses, int maxWindow, long giveUp, int maxInfoRetries) {
+        this.socket = socket;
+        this.maxWindow = Math.max(1, maxWindow);
+        this.giveUp = giveUp;
+        this.maxInfoRetries = maxInfoRetries;
+        for (InetSocketAddress address : addresses) {
+            Replica replica = new Replica(address, UDPClient.newRttEstimator());
+            replica.ssthresh = this.maxWindow;
+            replicas.add(replica);
+            bySession.put(replica.session, replica);
+        }
+    }
+
+    // Fetch filename into the sink, cachedVersion is the crc32c of a cached copy (null if there is none)
+    TransferResult run(String filename, ChunkSink.Factory sinkFactory, String cachedVersion) throws IOException {
+        int defaultTimeout = socket.getSoTimeout();
+        try {
+            TransferResult infoResult = exchangeInfo(filename, cachedVersion);
+            if (infoResult != null) return infoResult;
+
+            Replica first = answering().get(0);
+            String digest = UDPClient.getOption(first.info.split(" "), "crc32c");
+            System.out.println("Size: " + totalChunks + " chunks of " + first.format.chunkSize + " bytes"
+                    + (first.format.deflate ? ", deflate compressed" : "") + ", striped over " + answering().size() + " replicas");
+
+            try (ChunkSink sink = sinkFactory.open(totalChunks, first.format.chunkSize, digest, first.format.deflate)) {
+                boolean complete = fetch(sink, defaultTimeout);
+                report();
+                if (!complete || !UDPClient.verifyDigest(sink, digest)) {
+                    return TransferResult.FAILED;
+                }
+                sink.complete();
+                return TransferResult.RECEIVED;
+            }
+        } finally {
+            socket.setSoTimeout(defaultTimeout);
+        }
+    }
+
+    // INFO to every replica, returns null once all that answered agree on one version of the file, otherwise the outcome
+    private TransferResult exchangeInfo(String filename, String cachedVersion) throws IOException {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        for (int round = 0; round < maxInfoRetries && !pendingInfo().isEmpty(); round++) {
+            if (round > 1 && !answering().isEmpty()) {
+                // Others answered and one retry did not help, the file is fetched without the silent ones
+                break;
+            }
+            long deadline = 0;
+            for (Replica replica : pendingInfo()) {
+                if (round > 0) {
+                    System.out.println("[Warning] Timeout waiting for info from " + replica.name() + ", retry (" + round + "/" + maxInfoRetries + ")");
+                }
+                replica.infoSentAt = System.nanoTime();
+                send(replica, "INFO " + filename + UDPClient.formatRequest(replica.session) + (cachedVersion == null ? "" : " if=" + cachedVersion));
+                deadline = Math.max(deadline, System.currentTimeMillis() + Math.max(replica.rtt.getRto(), replica.busyUntil - System.currentTimeMillis()));
+            }
+            while (!pendingInfo().isEmpty()) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) break;
+                socket.setSoTimeout((int) wait);
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                String reply = new String(buffer, 0, packet.getLength(), StandardCharsets.UTF_8).trim();
+                String session = UDPClient.getOption(reply.split(" "), "session");
+                Replica replica = session == null ? null : bySession.get(UDPClient.parseSession(session));
+                if (replica == null || replica.info != null) {
+                    // Late chunks of an earlier transfer, or a duplicate reply
+                    continue;
+                }
+                if (reply.startsWith("busy ")) {
+                    // Asked again in the next round, not before the replica is ready
+                    replica.busyUntil = System.currentTimeMillis() + UDPClient.retryAfter(reply);
+                    deadline = Math.max(deadline, replica.busyUntil);
+                } else if (reply.startsWith("ok ") || reply.startsWith("error") || reply.startsWith("unchanged")) {
+                    if (round == 0) {
+                        replica.rtt.sample((System.nanoTime() - replica.infoSentAt) / 1_000_000.0);
+                    }
+                    replica.info = reply;
+                }
+            }
+        }
+
+        for (Replica replica : pendingInfo()) {
+            System.out.println("[Warning] No info reply from " + replica.name() + ", fetching without it");
+            replica.dropped = true;
+        }
+        List<Replica> answering = answering();
+        if (answering.isEmpty()) {
+            System.out.println("[ERROR] Failed to get metadata");
+            return TransferResult.FAILED;
+        }
+
+        String version = versionOf(answering.get(0).info);
+        for (Replica replica : answering) {
+            if (!versionOf(replica.info).equals(version)) {
+                System.out.println("[Error] Replicas do not serve the same version of " + filename + ":");
+                for (Replica r : answering) {
+                    System.out.println("  " + r.name() + ": " + versionOf(r.info));
+                }
+                return TransferResult.FAILED;
+            }
+        }
+        if (version.startsWith("error")) {
+            System.out.println("[ERROR] File not found");
+            return TransferResult.NOT_FOUND;
+        }
+        if (version.startsWith("unchanged")) {
+            System.out.println("Not modified since the cached copy");
+            return TransferResult.UNCHANGED;
+        }
+
+        totalChunks = Integer.parseInt(answering.get(0).info.split(" ")[1]);
+        long now = System.currentTimeMillis();
+        for (Replica replica : answering) {
+            String[] parts = replica.info.split(" ");
+            replica.format = ChunkFormat.fromReply(parts);
+            replica.lastDelivery = now;
+            replica.intervalStart = now;
+            String handle = UDPClient.getOption(parts, "handle");
+            if (handle != null) {
+                replica.requester = UDPClient.binaryRequester(socket, replica.address.getAddress(), replica.address.getPort(),
+                        replica.format, Integer.parseInt(handle));
+            } else {
+                String fetchCommand = "FETCH_FILE " + filename + " ";
+                String fetchOptions = replica.format.requestOptions();
+                replica.requester = chunkId -> send(replica, fetchCommand + chunkId + fetchOptions);
+            }
+        }
+        return null;
+    }
+
+    // What has to match between replicas: status, chunk count, chunk size, encoding and crc32c
+    private static String versionOf(String info) {
+        String[] parts = info.split(" ");
+        if (!parts[0].equals("ok")) return parts[0];
+        ChunkFormat format = ChunkFormat.fromReply(parts);
+        return "ok " + parts[1] + " chunks of " + format.chunkSize + (format.deflate ? " enc=deflate" : "")
+                + " crc32c=" + UDPClient.getOption(parts, "crc32c");
+    }
+
+    // Receive until every chunk is in the sink, false if the transfer had to be given up
+    private boolean fetch(ChunkSink sink, int defaultTimeout) throws IOException {
+        for (int chunkId = 0; chunkId < totalChunks; chunkId++) {
+            if (sink.has(chunkId)) {
+                received.set(chunkId);
+                receivedCount++;
+            }
+        }
+        stats = new TransferStats();
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        fill();
+        while (receivedCount < totalChunks) {
+            long wait = nextDeadline() - System.currentTimeMillis();
+            socket.setSoTimeout((int) Math.max(1, Math.min(wait, defaultTimeout)));
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                dispatch(sink, buffer, packet.getLength());
+            } catch (SocketTimeoutException e) {
+                // Fall through to the timer check
+            }
+            if (!checkTimers()) return false;
+            fill();
+        }
+        return true;
+    }
+
+    private void dispatch(ChunkSink sink, byte[] data, int length) throws IOException {
+        if (UDPClient.startsWith(data, length, "busy ") || UDPClient.startsWith(data, length, "error")) {
+            String reply = new String(data, 0, length, StandardCharsets.UTF_8).trim();
+            String session = UDPClient.getOption(reply.split(" "), "session");
+            Replica replica = session == null ? null : bySession.get(UDPClient.parseSession(session));
+            if (replica == null || replica.dropped) return;
+            if (reply.startsWith("busy ")) {
+                onBusy(replica, UDPClient.retryAfter(reply));
+            } else {
+                // The replica no longer knows the file handle (restarted), its chunks will not come
+                drop(replica, "rejected the chunk requests");
+            }
+            return;
+        }
+        if (UDPClient.startsWith(data, length, "ok ") || UDPClient.startsWith(data, length, "unchanged")) {
+            // Duplicate INFO reply
+            return;
+        }
+
+        if (length < ChunkFormat.SEQUENCE_SIZE + ChunkFormat.SESSION_SIZE) return;
+        Replica replica = bySession.get(ChunkFormat.getSession(data));
+        if (replica == null || replica.format == null) return;
+        if (!replica.format.verify(data, length)) {
+            // Damaged on the way, its timer gives it back to the pool
+            stats.onCorrupt();
+            return;
+        }
+        int chunkId = ChunkFormat.getSequence(data);
+        if (chunkId < 0 || chunkId >= totalChunks || received.get(chunkId)) {
+            // The slower copy of a hedged chunk, or a late duplicate
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Long sentAt = replica.sentAt.get(chunkId);
+        if (sentAt != null && !replica.repeated.get(chunkId)) {
+            replica.rtt.sample((System.nanoTime() - sentAt) / 1_000_000.0);
+        }
+        if (sentAt != null) {
+            growWindow(replica);
+        }
+        int dataLength = length - replica.format.headerSize();
+        replica.chunks++;
+        replica.bytes += dataLength;
+        replica.intervalBytes += dataLength;
+        replica.lastDelivery = now;
+        stats.onChunk(dataLength);
+
+        received.set(chunkId);
+        receivedCount++;
+        firstSentAt.remove(chunkId);
+        for (Replica r : replicas) {
+            // Frees the slot of every replica that was asked for it
+            r.inFlight.remove(chunkId);
+            r.sentAt.remove(chunkId);
+        }
+        sink.write(chunkId, data, replica.format.headerSize(), dataLength);
+    }
+
+    // Hand out chunks until no replica has room, the fastest replica first
+    private void fill() throws IOException {
+        long now = System.currentTimeMillis();
+        List<Replica> full = new ArrayList<>();
+        while (true) {
+            Replica best = null;
+            for (Replica replica : replicas) {
+                if (replica.format == null || replica.dropped || replica.busyUntil > now || full.contains(replica)
+                        || replica.inFlight.size() >= window(replica)) {
+                    continue;
+                }
+                if (best == null || replica.rate > best.rate) {
+                    best = replica;
+                }
+            }
+            if (best == null) return;
+
+            int chunkId = takeChunk(best);
+            if (chunkId < 0) {
+                full.add(best);
+                continue;
+            }
+            request(best, chunkId);
+        }
+    }
+
+    // Next chunk for replica: one given back, a new one, or a straggler of another replica; -1 if there is none
+    private int takeChunk(Replica replica) {
+        while (!returned.isEmpty()) {
+            int chunkId = returned.poll();
+            if (!received.get(chunkId) && !inFlightAnywhere(chunkId)) return chunkId;
+        }
+        int straggler = hedge(replica, HEDGE_RTOS);
+        if (straggler >= 0) return straggler;
+        while (nextChunk < totalChunks && received.get(nextChunk)) {
+            nextChunk++;
+        }
+        if (nextChunk < totalChunks) return nextChunk++;
+        // Nothing new left, help with whatever the others still have
+        return hedge(replica, 1);
+    }
+
+    // The oldest chunk another replica has had for rtos of replica's RTOs and that was not hedged yet, -1 if none
+    private int hedge(Replica replica, int rtos) {
+        long limit = rtos * replica.rtt.getRto() * 1_000_000L;
+        long now = System.nanoTime();
+        for (Replica other : replicas) {
+            if (other == replica) continue;
+            for (int chunkId : other.inFlight.keySet()) {
+                if (hedged.get(chunkId)) continue;
+                // In request order, every later chunk is younger
+                if (now - other.sentAt.get(chunkId) < limit) break;
+                hedged.set(chunkId);
+                return chunkId;
+            }
+        }
+        return -1;
+    }
+
+    private void request(Replica replica, int chunkId) throws IOException {
+        if (replica.requested.get(chunkId)) {
+            replica.repeated.set(chunkId);
+        }
+        replica.requested.set(chunkId);
+        replica.requester.request(chunkId);
+        replica.sentAt.put(chunkId, System.nanoTime());
+        replica.inFlight.put(chunkId, System.currentTimeMillis() + replica.rtt.getRto());
+        firstSentAt.putIfAbsent(chunkId, System.nanoTime());
+    }
+
+    // Give expired requests back to the pool, drop silent replicas, update rates; false once the transfer has to give up
+    private boolean checkTimers() {
+        long now = System.currentTimeMillis();
+        for (Replica replica : replicas) {
+            if (replica.dropped || replica.format == null) continue;
+
+            boolean lossDetected = false;
+            Iterator<Map.Entry<Integer, Long>> it = replica.inFlight.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Long> entry = it.next();
+                if (entry.getValue() > now) continue;
+                if (!lossDetected) {
+                    // One loss event per timer check: back off the RTO and shrink the window once
+                    lossDetected = true;
+                    replica.rtt.backoff();
+                    replica.ssthresh = Math.max(2, replica.inFlight.size() / 2.0);
+                    replica.cwnd = 1;
+                }
+                int chunkId = entry.getKey();
+                it.remove();
+                replica.sentAt.remove(chunkId);
+                replica.timeouts++;
+                stats.onRetransmit();
+                if (!inFlightAnywhere(chunkId)) {
+                    returned.add(chunkId);
+                }
+            }
+            if (lossDetected && now - replica.lastDelivery >= giveUp) {
+                drop(replica, "delivered nothing for " + giveUp + " ms");
+                continue;
+            }
+
+            if (now - replica.intervalStart >= RATE_INTERVAL) {
+                double measured = replica.intervalBytes * 1000.0 / (now - replica.intervalStart);
+                replica.rate = replica.rate == 0 ? measured : (1 - RATE_WEIGHT) * replica.rate + RATE_WEIGHT * measured;
+                replica.intervalStart = now;
+                replica.intervalBytes = 0;
+            }
+        }
+
+        if (answering().stream().allMatch(replica -> replica.dropped)) {
+            System.out.println("[Error] No replica left to fetch from");
+            return false;
+        }
+        long nowNanos = System.nanoTime();
+        for (Map.Entry<Integer, Long> entry : firstSentAt.entrySet()) {
+            if (nowNanos - entry.getValue() >= giveUp * 1_000_000L) {
+                System.out.println("[Error] Failed to retrieve chunk " + entry.getKey() + " from any replica");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Leave the replica out from now on, its chunks go to the others
+    private void drop(Replica replica, String reason) {
+        System.out.println("[Warning] Replica " + replica.name() + " " + reason + ", moving its " + replica.inFlight.size() + " chunks");
+        replica.dropped = true;
+        List<Integer> chunks = new ArrayList<>(replica.inFlight.keySet());
+        replica.inFlight.clear();
+        replica.sentAt.clear();
+        for (int chunkId : chunks) {
+            if (!received.get(chunkId) && !inFlightAnywhere(chunkId)) {
+                returned.addFirst(chunkId);
+            }
+        }
+    }
+
+    // The replica turned a request away: shrink its window like on a loss and send it nothing until retryAfter ms
+    private void onBusy(Replica replica, long retryAfter) {
+        replica.ssthresh = Math.max(2, replica.inFlight.size() / 2.0);
+        replica.cwnd = 1;
+        replica.busyUntil = System.currentTimeMillis() + retryAfter;
+        for (Map.Entry<Integer, Long> entry : replica.inFlight.entrySet()) {
+            entry.setValue(Math.max(entry.getValue(), replica.busyUntil));
+        }
+    }
+
+    // Time (ms) of the earliest retransmission deadline, or the end of a busy wait of a replica with nothing in flight
+    private long nextDeadline() {
+        long earliest = System.currentTimeMillis() + RATE_INTERVAL;
+        for (Replica replica : replicas) {
+            if (replica.dropped || replica.format == null) continue;
+            for (long deadline : replica.inFlight.values()) {
+                earliest = Math.min(earliest, deadline);
+            }
+            if (replica.inFlight.isEmpty() && replica.busyUntil > 0) {
+                earliest = Math.min(earliest, replica.busyUntil);
+            }
+        }
+        return earliest;
+    }
+
+    private void growWindow(Replica replica) {
+        if (replica.cwnd < replica.ssthresh) {
+            replica.cwnd += 1;
+        } else {
+            replica.cwnd += 1 / replica.cwnd;
+        }
+        replica.cwnd = Math.min(replica.cwnd, maxWindow);
+    }
+
+    private int window(Replica replica) {
+        return Math.max(1, Math.min((int) replica.cwnd, maxWindow));
+    }
+
+    private boolean inFlightAnywhere(int chunkId) {
+        for (Replica replica : replicas) {
+            if (replica.inFlight.containsKey(chunkId)) return true;
+        }
+        return false;
+    }
+
+    private List<Replica> pendingInfo() {
+        List<Replica> pending = new ArrayList<>();
+        for (Replica replica : replicas) {
+            if (replica.info == null && !replica.dropped) pending.add(replica);
+        }
+        return pending;
+    }
+
+    private List<Replica> answering() {
+        List<Replica> answering = new ArrayList<>();
+        for (Replica replica : replicas) {
+            if (replica.info != null) answering.add(replica);
+        }
+        return answering;
+    }
+
+    // Share of the file every replica delivered
+    private void report() {
+        Replica busiest = answering().get(0);
+        for (Replica replica : answering()) {
+            if (replica.chunks > busiest.chunks) busiest = replica;
+        }
+        stats.report(busiest.rtt, "striped over " + answering().size() + " replicas");
+        long total = Math.max(1, stats.getBytes());
+        for (Replica replica : answering()) {
+            System.out.println(String.format("Replica %s: %d chunks, %d bytes (%.0f%%), %d timeouts, %s%s",
+                    replica.name(), replica.chunks, replica.bytes, replica.bytes * 100.0 / total, replica.timeouts,
+                    replica.rtt, replica.dropped ? ", dropped" : ""));
+        }
+    }
+
+    private void send(Replica replica, String text) throws IOException {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        socket.send(new DatagramPacket(data, data.length, replica.address));
+    }
+}
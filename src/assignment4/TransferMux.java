@@ -0,0 +1,299 @@
+package assignment4;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * TransferMux
+ * Runs many file transfers at once over one DatagramSocket, driven by a single receiver loop
+ * 1. Every transfer has its own session id, echoed in the info reply and carried in every chunk header
+ * 2. The loop demultiplexes each packet by session id to that transfer's WindowedTransfer,
+ *    packets of unknown or finished sessions (late duplicates) are dropped
+ * 3. The info and retransmission timers of all transfers share the loop, receive() only blocks until the earliest one
+ * 4. At most maxActive transfers run at once, the others start as soon as one finishes
+ * 5. A transfer added with the version of a cached copy asks "if=<version>" and ends UNCHANGED if the server still has it
+ * All transfers share one RttEstimator, they all take the same path to the server
+ */
+class TransferMux {
+
+    // Largest UDP payload over IPv4, every reply fits
+    private static final int MAX_DATAGRAM = 65507;
+
+    private final DatagramSocket socket;
+    private final InetAddress address;
+    private final int port;
+    private final int maxWindow;
+    private final int maxActive;
+    private final long giveUp;
+    private final int maxInfoRetries;
+    private final RttEstimator rtt;
+    private final TransferStats stats = new TransferStats();
+
+    private final List<Transfer> transfers = new ArrayList<>();
+    private final Deque<Transfer> waiting = new ArrayDeque<>();
+    // Session id -> running transfer
+    private final Map<Integer, Transfer> active = new HashMap<>();
+
+    private static final class Transfer {
+        final String filename;
+        final ChunkSink.Factory sinkFactory;
+        // Version of the cached copy, null if there is none
+        final String cachedVersion;
+        final int session = UDPClient.newSession();
+        TransferResult outcome;
+
+        // Until the info reply: retries and timer
+        int infoRetries;
+        long infoSentAt; // ns
+        long infoDeadline; // ms
+
+        // After the info reply
+        ChunkFormat format;
+        String digest;
+        ChunkSink sink;
+        WindowedTransfer window;
+        WindowedTransfer.ChunkRequester requester;
+
+        Transfer(String filename, ChunkSink.Factory sinkFactory, String cachedVersion) {
+            this.filename = filename;
+            this.sinkFactory = sinkFactory;
+            this.cachedVersion = cachedVersion;
+        }
+    }
+
+    // giveUp: ms a chunk may stay unanswered, maxInfoRetries: info requests sent before a file is given up
+    TransferMux(DatagramSocket socket, InetAddress address, int port, int maxWindow, int maxActive,
+                long giveUp, int maxInfoRetries, RttEstimator rtt) {
+        this.socket = socket;
+        this.address = address;
+        this.port = port;
+        this.maxWindow = maxWindow;
+        this.maxActive = Math.max(1, maxActive);
+        this.giveUp = giveUp;
+        this.maxInfoRetries = maxInfoRetries;
+        this.rtt = rtt;
+    }
+
+    // Queue one file, nothing is sent before run(), cachedVersion is null if there is no cached copy
+    void add(String filename, ChunkSink.Factory sinkFactory, String cachedVersion) {
+        Transfer transfer = new Transfer(filename, sinkFactory, cachedVersion);
+        transfers.add(transfer);
+        waiting.add(transfer);
+    }
+
+    // Runs until every transfer has finished, returns their outcomes in the order they were added
+    List<TransferResult> run() throws IOException {
+        int defaultTimeout = socket.getSoTimeout();
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        try {
+            startWaiting();
+            while (!active.isEmpty()) {
+                long wait = nextDeadline() - System.currentTimeMillis();
+                socket.setSoTimeout((int) Math.max(1, Math.min(wait, defaultTimeout)));
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                    dispatch(buffer, packet.getLength());
+                } catch (SocketTimeoutException e) {
+                    // Fall through to the timer check
+                }
+                checkTimers();
+                startWaiting();
+            }
+        } finally {
+            socket.setSoTimeout(defaultTimeout);
+            // Only left over if run() failed, keep partial files resumable
+            for (Transfer transfer : active.values()) {
+                closeSink(transfer);
+            }
+        }
+
+        stats.report(rtt, transfers.size() + " files");
+        List<TransferResult> outcomes = new ArrayList<>();
+        for (Transfer transfer : transfers) {
+            outcomes.add(transfer.outcome);
+        }
+        return outcomes;
+    }
+
+    private void startWaiting() throws IOException {
+        while (active.size() < maxActive && !waiting.isEmpty()) {
+            Transfer transfer = waiting.poll();
+            active.put(transfer.session, transfer);
+            sendInfo(transfer);
+        }
+    }
+
+    private void sendInfo(Transfer transfer) throws IOException {
+        transfer.infoSentAt = System.nanoTime();
+        transfer.infoDeadline = System.currentTimeMillis() + rtt.getRto();
+        send("INFO " + transfer.filename + UDPClient.formatRequest(transfer.session)
+                + (transfer.cachedVersion == null ? "" : " if=" + transfer.cachedVersion));
+    }
+
+    // Route one packet to its transfer by session id
+    private void dispatch(byte[] data, int length) throws IOException {
+        if (UDPClient.startsWith(data, length, "busy ")) {
+            String reply = new String(data, 0, length, StandardCharsets.UTF_8).trim();
+            String session = UDPClient.getOption(reply.split(" "), "session");
+            Transfer transfer = session == null ? null : active.get(UDPClient.parseSession(session));
+            if (transfer != null) {
+                onBusy(transfer, UDPClient.retryAfter(reply));
+            }
+            return;
+        }
+        if (UDPClient.startsWith(data, length, "ok ") || UDPClient.startsWith(data, length, "error") || UDPClient.startsWith(data, length, "unchanged")) {
+            String reply = new String(data, 0, length, StandardCharsets.UTF_8).trim();
+            String session = UDPClient.getOption(reply.split(" "), "session");
+            Transfer transfer = session == null ? null : active.get(UDPClient.parseSession(session));
+            if (transfer != null && transfer.window == null) {
+                onInfo(transfer, reply);
+            } else if (transfer != null && reply.startsWith("error")) {
+                // The server no longer knows the file handle (restarted), the chunks will not come
+                System.out.println("[ERROR] Server rejected the chunk requests of " + transfer.filename);
+                finish(transfer, TransferResult.FAILED);
+            }
+            return;
+        }
+
+        if (length < ChunkFormat.SEQUENCE_SIZE + ChunkFormat.SESSION_SIZE) return;
+        Transfer transfer = active.get(ChunkFormat.getSession(data));
+        if (transfer == null || transfer.window == null) {
+            // Late chunk of a finished transfer, or not a chunk at all
+            return;
+        }
+        if (!transfer.format.verify(data, length)) {
+            // Damaged on the way, its timer fetches it again
+            stats.onCorrupt();
+            return;
+        }
+
+        int headerSize = transfer.format.headerSize();
+        if (transfer.window.onChunk(ChunkFormat.getSequence(data), data, headerSize, length - headerSize)) {
+            transfer.window.fillWindow(transfer.requester);
+            if (transfer.window.isComplete()) {
+                complete(transfer);
+            }
+        }
+    }
+
+    private void onInfo(Transfer transfer, String reply) throws IOException {
+        if (reply.startsWith("error")) {
+            System.out.println("[ERROR] File not found: " + transfer.filename);
+            finish(transfer, TransferResult.NOT_FOUND);
+            return;
+        }
+        if (reply.startsWith("unchanged")) {
+            finish(transfer, TransferResult.UNCHANGED);
+            return;
+        }
+        if (transfer.infoRetries == 0) {
+            rtt.sample((System.nanoTime() - transfer.infoSentAt) / 1_000_000.0);
+        }
+
+        String[] parts = reply.split(" ");
+        int totalChunks = Integer.parseInt(parts[1]);
+        transfer.format = ChunkFormat.fromReply(parts);
+        transfer.digest = UDPClient.getOption(parts, "crc32c");
+        try {
+            transfer.sink = transfer.sinkFactory.open(totalChunks, transfer.format.chunkSize, transfer.digest, transfer.format.deflate);
+        } catch (IOException e) {
+            System.out.println("[Error] Open " + transfer.filename + " failed, e: " + e.getMessage());
+            finish(transfer, TransferResult.FAILED);
+            return;
+        }
+
+        String handle = UDPClient.getOption(parts, "handle");
+        if (handle != null) {
+            transfer.requester = UDPClient.binaryRequester(socket, address, port, transfer.format, Integer.parseInt(handle));
+        } else {
+            String fetchCommand = "FETCH_FILE " + transfer.filename + " ";
+            String fetchOptions = transfer.format.requestOptions();
+            transfer.requester = chunkId -> send(fetchCommand + chunkId + fetchOptions);
+        }
+        transfer.window = new WindowedTransfer(totalChunks, maxWindow, giveUp, transfer.sink, rtt, stats);
+        transfer.window.fillWindow(transfer.requester);
+        if (transfer.window.isComplete()) {
+            // Empty file, or every chunk was there from an earlier download
+            complete(transfer);
+        }
+    }
+
+    // The server turned a request of this transfer away, its timers wait until the server is ready again
+    private void onBusy(Transfer transfer, long retryAfter) {
+        if (transfer.window == null) {
+            transfer.infoDeadline = Math.max(transfer.infoDeadline, System.currentTimeMillis() + retryAfter);
+        } else {
+            transfer.window.onBusy(retryAfter);
+        }
+    }
+
+    private void complete(Transfer transfer) throws IOException {
+        if (UDPClient.verifyDigest(transfer.sink, transfer.digest)) {
+            transfer.sink.complete();
+            finish(transfer, TransferResult.RECEIVED);
+        } else {
+            finish(transfer, TransferResult.FAILED);
+        }
+    }
+
+    private void checkTimers() throws IOException {
+        long now = System.currentTimeMillis();
+        for (Transfer transfer : new ArrayList<>(active.values())) {
+            if (transfer.window == null) {
+                if (transfer.infoDeadline > now) continue;
+                if (++transfer.infoRetries >= maxInfoRetries) {
+                    System.out.println("[ERROR] Failed to get metadata: " + transfer.filename);
+                    finish(transfer, TransferResult.FAILED);
+                } else {
+                    stats.onRetransmit();
+                    sendInfo(transfer);
+                }
+            } else if (!transfer.window.retransmitExpired(now, transfer.requester)) {
+                System.out.println("[Error] Failed to retrieve chunk " + transfer.window.getFailedChunk() + " of " + transfer.filename);
+                finish(transfer, TransferResult.FAILED);
+            }
+        }
+    }
+
+    // Time (ms) of the earliest timer of any running transfer
+    private long nextDeadline() {
+        long earliest = Long.MAX_VALUE;
+        for (Transfer transfer : active.values()) {
+            earliest = Math.min(earliest, transfer.window == null ? transfer.infoDeadline : transfer.window.nextDeadline());
+        }
+        return earliest;
+    }
+
+    private void finish(Transfer transfer, TransferResult outcome) {
+        transfer.outcome = outcome;
+        active.remove(transfer.session);
+        closeSink(transfer);
+    }
+
+    private void closeSink(Transfer transfer) {
+        if (transfer.sink == null) return;
+        try {
+            transfer.sink.close();
+        } catch (IOException e) {
+            System.out.println("[Warning] Close " + transfer.filename + " failed, e: " + e.getMessage());
+        }
+    }
+
+    private void send(String text) throws IOException {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        socket.send(new DatagramPacket(data, data.length, address, port));
+    }
+}
@@ -0,0 +1,12 @@
+package assignment4;
+
+// How one file transfer ended
+enum TransferResult {
+    RECEIVED,
+    // The server still has the version of our cached copy ("unchanged"), nothing was transferred
+    UNCHANGED,
+    NOT_FOUND,
+    FAILED,
+    // The index generation being fetched aged out on the server ("error stale"), the listing starts over with INDEX
+    STALE
+}
@@ -0,0 +1,37 @@
+package assignment4;
+
+// Counters of one transfer, printed when receiveDataReliably finishes
+class TransferStats {
+
+    private final long start = System.nanoTime();
+    private long chunks;
+    private long bytes;
+    private long retransmits;
+    private long corrupt;
+
+    void onChunk(int length) {
+        chunks++;
+        bytes += length;
+    }
+
+    void onRetransmit() {
+        retransmits++;
+    }
+
+    // A chunk that failed its CRC32C check and was dropped
+    void onCorrupt() {
+        corrupt++;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    void report(RttEstimator rtt, String extra) {
+        double millis = (System.nanoTime() - start) / 1_000_000.0;
+        double rate = millis > 0 ? bytes / 1024.0 / (millis / 1000.0) : 0;
+        System.out.println(String.format("Transfer stats: %d chunks, %d bytes in %.1f ms (%.1f KB/s), %d retransmits, %d corrupt",
+                chunks, bytes, millis, rate, retransmits, corrupt));
+        System.out.println("Transfer stats: " + rtt + (extra.isEmpty() ? "" : ", " + extra));
+    }
+}
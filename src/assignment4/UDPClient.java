@@ -1,10 +1,22 @@
 package assignment4;
 
+import common.ContentCache;
+import common.DigestCache;
+
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /*
  * UDPClient
@@ -20,18 +32,116 @@ public class UDPClient {
     private static final int SERVER_PORT = 12345;
     private static final int TIMEOUT = 2000;
     private static final int MAX_RETRIES = 5;
-    private static final int CHUNK_SIZE = 1024;
-    private static final int HEADER_SIZE = 4;
+    // Adaptive retransmission timeout bounds, the RTO starts at TIMEOUT until the first RTT sample
+    private static final int MIN_RTO = 20;
+    private static final int MAX_RTO = TIMEOUT;
+    // A chunk is given up after as long as the fixed timer used to wait in total
+    private static final int GIVE_UP = MAX_RETRIES * TIMEOUT;
+    // Chunk size every server speaks, larger ones are negotiated with "chunk=<size>" on INFO/INDEX/STREAM
+    private static final int DEFAULT_CHUNK_SIZE = ChunkFormat.DEFAULT_CHUNK_SIZE;
+    // Room for the largest chunk header, sequence number + session + CRC32C
+    private static final int HEADER_SIZE = ChunkFormat.MAX_HEADER_SIZE;
+    // IPv4 (20) + UDP (8) header bytes that share the MTU with our payload
+    private static final int IP_UDP_OVERHEAD = 28;
+    // Largest UDP payload over IPv4
+    private static final int MAX_DATAGRAM = 65507;
+    // Path MTU probing: smallest size tried and how long to wait for each echo
+    private static final int MIN_PROBE_SIZE = 512;
+    private static final int PROBE_TIMEOUT = 300;
+    // A STREAM push is considered paused after this long without packets, then missing chunks are NACKed
+    private static final int STREAM_IDLE_TIMEOUT = 200;
+    // Upper bound of chunks covered by one NACK bitmap, keeps the request within one small datagram
+    static final int MAX_NACK_CHUNKS = 2048;
+    // Files of one mget in flight at once, each keeps its own window of chunks
+    private static final int MAX_ACTIVE_TRANSFERS = 256;
+    // Receive buffer asked for when many transfers share the socket, so a burst of replies is not dropped
+    private static final int MUX_RECEIVE_BUFFER = 4 * 1024 * 1024;
+
+    // Where requests go, --port points the client at e.g. an impairment proxy in front of the server
+    private static int serverPort = SERVER_PORT;
+    private static String serverHost = SERVER_ADDRESS;
+    // With --servers, replicas serving the same directory; get stripes a file across all of them
+    private static final List<InetSocketAddress> replicas = new ArrayList<>();
+    // Number of outstanding chunk requests, 1 means Stop-and-Wait
+    private static int windowSize = 1;
+    // Chunk size asked for, the server may answer with a smaller one
+    private static int chunkSize = DEFAULT_CHUNK_SIZE;
+    // With --out, get and stream write files here instead of printing them
+    private static File outDir;
+    // Ask for the deflate-compressed form of files, the server only sends it for files that compress
+    private static boolean compress = false;
+    // Ask INFO for a file handle ("bin=1") and fetch chunks with binary requests, --text keeps the text FETCH_FILE
+    private static boolean binaryRequests = true;
+    // With --cache, copies of fetched files; a get of an unchanged file then costs one round trip
+    private static ContentCache cache;
+    // Session ids start at a random point, so a restarted client does not pick up replies meant for the last one
+    private static final AtomicInteger nextSession = new AtomicInteger(ThreadLocalRandom.current().nextInt());
 
     public static void main(String[] args) {
+        String chunkOption = null;
+        boolean probe = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--window") && i + 1 < args.length) {
+                windowSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--chunk") && i + 1 < args.length) {
+                chunkOption = args[++i];
+            } else if (args[i].equals("--port") && i + 1 < args.length) {
+                serverPort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--servers") && i + 1 < args.length) {
+                for (String server : args[++i].split(",")) {
+                    int colon = server.lastIndexOf(':');
+                    String host = colon < 0 ? SERVER_ADDRESS : server.substring(0, colon);
+                    int port = colon < 0 ? Integer.parseInt(server) : Integer.parseInt(server.substring(colon + 1));
+                    replicas.add(new InetSocketAddress(host.isEmpty() ? SERVER_ADDRESS : host, port));
+                }
+                // Every other command goes to the first replica
+                serverHost = replicas.get(0).getHostString();
+                serverPort = replicas.get(0).getPort();
+            } else if (args[i].equals("--probe")) {
+                probe = true;
+            } else if (args[i].equals("--compress")) {
+                compress = true;
+            } else if (args[i].equals("--text")) {
+                binaryRequests = false;
+            } else if (args[i].equals("--cache") && i + 1 < args.length) {
+                try {
+                    cache = new ContentCache(new File(args[++i]));
+                } catch (IOException e) {
+                    System.out.println("[Error] Can not use cache directory " + args[i] + ", e: " + e.getMessage());
+                    return;
+                }
+            } else if (args[i].equals("--out") && i + 1 < args.length) {
+                outDir = new File(args[++i]);
+                if (!outDir.isDirectory()) {
+                    System.out.println("[Error] " + outDir + " is not a directory");
+                    return;
+                }
+            } else {
+                System.out.println("Usage: java assignment4.UDPClient [--window <size>] [--chunk <size>|auto] [--probe] [--compress] [--out <directory>] [--cache <directory>] [--port <port>] [--servers <host:port>,...] [--text]");
+                return;
+            }
+        }
+
         Scanner scanner = new Scanner(System.in);
 
-        System.out.println("Available commands: 'index' or 'get <filename>' or 'exit'");
+        System.out.println("Available commands: 'index' or 'get <filename>' or 'mget <filename>... | *' or 'stream <filename>' or 'stats' or 'exit'");
 
         try (DatagramSocket socket = new DatagramSocket()) {
             // Enable timeout for receive() calls
             socket.setSoTimeout(TIMEOUT);
-            InetAddress serverAddress = InetAddress.getByName(SERVER_ADDRESS);
+            InetAddress serverAddress = InetAddress.getByName(serverHost);
+
+            if (chunkOption != null && !chunkOption.equals("auto")) {
+                chunkSize = Integer.parseInt(chunkOption);
+            } else if (chunkOption != null) {
+                chunkSize = chunkSizeForMtu(serverAddress);
+            }
+            if (probe) {
+                chunkSize = probeChunkSize(socket, serverAddress, chunkOption == null ? MAX_DATAGRAM - HEADER_SIZE : chunkSize);
+            }
+            if (chunkSize != DEFAULT_CHUNK_SIZE) {
+                System.out.println("Requested chunk size: " + chunkSize + " bytes");
+            }
 
             while (true) {
                 System.out.print("\nEnter command: ");
@@ -43,7 +153,19 @@ public class UDPClient {
                     requestIndex(socket, serverAddress);
                 } else if (input.startsWith("get ")) {
                     String filename = input.substring(4).trim();
-                    getFile(socket, serverAddress, filename);
+                    if (replicas.size() > 1) {
+                        getFileStriped(socket, filename);
+                    } else {
+                        getFile(socket, serverAddress, filename);
+                    }
+                } else if (input.startsWith("mget ")) {
+                    String[] filenames = input.substring(5).trim().split("\\s+");
+                    getFiles(socket, serverAddress, filenames);
+                } else if (input.startsWith("stream ")) {
+                    String filename = input.substring(7).trim();
+                    streamFile(socket, serverAddress, filename);
+                } else if (input.equals("stats")) {
+                    requestStats(socket, serverAddress);
                 } else {
                     System.out.println("[Warning] Unexpected command");
                 }
@@ -55,18 +177,214 @@ public class UDPClient {
 
     private static void sendPacket(DatagramSocket socket, InetAddress address, String text) throws IOException {
         byte[] data = text.getBytes(StandardCharsets.UTF_8);
-        DatagramPacket packet = new DatagramPacket(data, data.length, address, SERVER_PORT);
+        DatagramPacket packet = new DatagramPacket(data, data.length, address, serverPort);
         socket.send(packet);
     }
 
+    // Largest chunk that fits the MTU of the local interface used to reach the server
+    private static int chunkSizeForMtu(InetAddress serverAddress) {
+        try (DatagramSocket probe = new DatagramSocket()) {
+            // connect() on a datagram socket only picks the route, nothing is sent
+            probe.connect(serverAddress, serverPort);
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+            if (networkInterface != null && networkInterface.getMTU() > 0) {
+                int mtu = networkInterface.getMTU();
+                int size = Math.min(mtu, MAX_DATAGRAM + IP_UDP_OVERHEAD) - IP_UDP_OVERHEAD - HEADER_SIZE;
+                System.out.println("Interface " + networkInterface.getName() + " MTU " + mtu + ", chunk size " + size);
+                return size;
+            }
+        } catch (IOException e) {
+            System.out.println("[Warning] MTU lookup failed, e: " + e.getMessage());
+        }
+        return DEFAULT_CHUNK_SIZE;
+    }
+
+    // Binary search the largest datagram the server echoes back, the MTU of the interface is only an upper bound
+    private static int probeChunkSize(DatagramSocket socket, InetAddress address, int maxChunk) throws IOException {
+        int low = MIN_PROBE_SIZE; // Assumed to always pass
+        int high = Math.min(MAX_DATAGRAM, maxChunk + HEADER_SIZE);
+        byte[] replyBuffer = new byte[MAX_DATAGRAM];
+        DatagramPacket reply = new DatagramPacket(replyBuffer, replyBuffer.length);
+
+        try {
+            socket.setSoTimeout(PROBE_TIMEOUT);
+            while (low < high) {
+                int size = (low + high + 1) / 2;
+                if (probe(socket, address, size, reply)) {
+                    low = size;
+                } else {
+                    high = size - 1;
+                }
+            }
+        } finally {
+            socket.setSoTimeout(TIMEOUT);
+        }
+
+        System.out.println("Probed datagram size " + low + " bytes, chunk size " + (low - HEADER_SIZE));
+        return low - HEADER_SIZE;
+    }
+
+    // PROBE <size> <padding>: true if an echo of exactly size bytes came back, retried once for plain loss
+    private static boolean probe(DatagramSocket socket, InetAddress address, int size, DatagramPacket reply) throws IOException {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) 'x');
+        byte[] command = ("PROBE " + size + " ").getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(command, 0, data, 0, command.length);
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                socket.send(new DatagramPacket(data, data.length, address, serverPort));
+            } catch (IOException e) {
+                // EMSGSIZE: larger than the local interface allows
+                return false;
+            }
+            try {
+                while (true) {
+                    reply.setLength(reply.getData().length);
+                    socket.receive(reply);
+                    String status = new String(reply.getData(), 0, Math.min(8, reply.getLength()), StandardCharsets.UTF_8);
+                    if (status.equals("PROBE_OK")) {
+                        if (reply.getLength() == size) return true;
+                        // Echo of an earlier (timed out) probe, or the server truncated it
+                        if (reply.getLength() < size && attempt == 1) return false;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // Lost or dropped on the way, try once more
+            }
+        }
+        return false;
+    }
+
+    // Value of a "key=value" token in a reply, or null
+    static String getOption(String[] parts, String key) {
+        for (String part : parts) {
+            if (part.startsWith(key + "=")) {
+                return part.substring(key.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    // Session id of a "session=<id>" value, 0 (no session) if it is missing or not a number
+    static int parseSession(String session) {
+        if (session == null) return 0;
+        try {
+            return Integer.parseInt(session);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // True if the first length bytes of a datagram start with the ASCII prefix, checked without decoding it
+    static boolean startsWith(byte[] data, int length, String prefix) {
+        if (length < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (data[i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // Options of the info request: the chunk size we want (old servers only understand requests without it),
+    // per-chunk CRC32C, the session id that tags every reply and chunk of this transfer, with --compress the encoding
+    // and unless --text a file handle for binary chunk requests
+    static String formatRequest(int session) {
+        return (chunkSize == DEFAULT_CHUNK_SIZE ? "" : " chunk=" + chunkSize) + " crc=1 session=" + session
+                + (compress ? " enc=deflate" : "") + (binaryRequests ? " bin=1" : "");
+    }
+
+    // Sends binary FETCH requests (BinaryRequest) for the file the server gave handle to, reusing one buffer
+    static WindowedTransfer.ChunkRequester binaryRequester(DatagramSocket socket, InetAddress address, int port,
+                                                           ChunkFormat format, int handle) {
+        byte[] request = new byte[BinaryRequest.SIZE];
+        DatagramPacket packet = new DatagramPacket(request, request.length, address, port);
+        return chunkId -> {
+            BinaryRequest.putFetch(request, format, handle, chunkId);
+            socket.send(packet);
+        };
+    }
+
+    // Estimator with the client's RTO bounds, for transfers that keep one per server
+    static RttEstimator newRttEstimator() {
+        return new RttEstimator(TIMEOUT, MIN_RTO, MAX_RTO);
+    }
+
+    // A fresh id for each transfer, never 0 (no session) and not reused for a long time
+    static int newSession() {
+        int session;
+        do {
+            session = nextSession.getAndIncrement();
+        } while (session == 0);
+        return session;
+    }
+
+    // True for an "ok"/"error"/"busy"/"unchanged" reply to the transfer with this session, false for late chunks or replies of other transfers
+    static boolean isReplyFor(String reply, int session) {
+        if (!reply.startsWith("ok ") && !reply.startsWith("error") && !reply.startsWith("busy ") && !reply.startsWith("unchanged")) {
+            return false;
+        }
+        String id = getOption(reply.split(" "), "session");
+        // Older servers do not echo the session
+        return id == null || id.equals(Integer.toString(session));
+    }
+
+    // Retry-after (ms) of a "busy retry=<ms>" reply to this session, -1 for any other packet
+    // A chunk never looks like one, its sequence number would have to be above 1.6 billion
+    static long busyDelay(byte[] packet, int length, int session) {
+        if (length < 5 || packet[0] != 'b' || packet[1] != 'u' || packet[2] != 's' || packet[3] != 'y' || packet[4] != ' ') {
+            return -1;
+        }
+        String reply = new String(packet, 0, length, StandardCharsets.UTF_8).trim();
+        return isReplyFor(reply, session) ? retryAfter(reply) : -1;
+    }
+
+    // True for an "error stale gen=<current>" reply to this session: the index generation of FETCH_INDEX is gone
+    static boolean isStale(byte[] packet, int length, int session) {
+        if (length < 11 || packet[0] != 'e' || packet[6] != 's' || packet[7] != 't') {
+            return false;
+        }
+        String reply = new String(packet, 0, length, StandardCharsets.UTF_8).trim();
+        return reply.startsWith("error stale") && isReplyFor(reply, session);
+    }
+
+    static long retryAfter(String busyReply) {
+        String retry = getOption(busyReply.split(" "), "retry");
+        try {
+            return retry == null ? TIMEOUT : Long.parseLong(retry);
+        } catch (NumberFormatException e) {
+            return TIMEOUT;
+        }
+    }
+
+    // The server is overloaded, wait as long as it asked before sending again
+    private static void waitBusy(long retryAfter) {
+        System.out.println("[Warning] Server busy, retry in " + retryAfter + " ms");
+        try {
+            Thread.sleep(retryAfter);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Compare the whole file against the server's crc32c, a mismatch throws the download away
+    static boolean verifyDigest(ChunkSink sink, String digest) throws IOException {
+        if (digest == null) return true;
+        String actual = DigestCache.format(sink.crc32c());
+        if (actual.equals(digest)) {
+            System.out.println("Verified crc32c " + digest);
+            return true;
+        }
+        System.out.println("[Error] File crc32c " + actual + " does not match " + digest + ", the file changed on the server, get it again");
+        sink.discard();
+        return false;
+    }
+
     private static void requestIndex(DatagramSocket socket, InetAddress address) {
         try {
             System.out.println("Request file list");
-            // Info command is "INDEX", Fetch command is "FETCH_INDEX <id>"
-            byte[] data = receiveDataReliably(socket, address, "INDEX", "FETCH_INDEX");
-
-            if (data != null) {
-                String list = new String(data, StandardCharsets.UTF_8);
+            // Info command is "INDEX", Fetch command is "FETCH_INDEX <id> gen=<generation>"
+            String list = fetchIndex(socket, address);
+            if (list != null) {
                 System.out.println("--- Files on Server ---");
                 System.out.println(list);
                 System.out.println("-----------------------");
@@ -76,42 +394,253 @@ public class UDPClient {
         }
     }
 
+    // "STATS": the server's metrics report in one datagram, it only answers clients on its own host
+    private static void requestStats(DatagramSocket socket, InetAddress address) {
+        try {
+            sendPacket(socket, address, "STATS");
+            byte[] buffer = new byte[MAX_DATAGRAM];
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                String reply = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+                // Late chunks of an earlier transfer may still be queued, skip them
+                if (reply.startsWith("UDPServer ")) {
+                    System.out.print(reply);
+                    return;
+                } else if (reply.equals("error")) {
+                    System.out.println("[Warning] Server only reports stats to local clients");
+                    return;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            System.out.println("[Warning] No stats reply");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     private static void getFile(DatagramSocket socket, InetAddress address, String filename) {
         try {
             System.out.println("Request file: " + filename);
             // Info command is "INFO <filename>", Fetch command is "FETCH_FILE <filename> <id>"
-            byte[] data = receiveDataReliably(socket, address, "INFO " + filename, "FETCH_FILE " + filename);
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            TransferResult result = receiveDataReliably(socket, address, "INFO " + filename + ifCached(filename), "FETCH_FILE " + filename,
+                    sinkFor(filename, data));
+            showFile(filename, data, result);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            if (data != null) {
-                System.out.println("\n--- Start of File: " + filename + " ---");
-                System.out.println(new String(data, StandardCharsets.UTF_8));
-                System.out.println("--- End of File ---\n");
+    // One file from every replica at once (StripedTransfer), each delivers a share that follows its rate
+    private static void getFileStriped(DatagramSocket socket, String filename) {
+        try {
+            System.out.println("Request file: " + filename + " from " + replicas.size() + " replicas");
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            int defaultBuffer = socket.getReceiveBufferSize();
+            socket.setReceiveBufferSize(Math.max(defaultBuffer, MUX_RECEIVE_BUFFER));
+            TransferResult result;
+            try {
+                StripedTransfer transfer = new StripedTransfer(socket, replicas, windowSize, GIVE_UP, MAX_RETRIES);
+                result = transfer.run(filename, sinkFor(filename, data), cache == null ? null : cache.version(filename));
+            } finally {
+                socket.setReceiveBufferSize(defaultBuffer);
             }
+            showFile(filename, data, result);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    // Stop-and-Wait protocol, used by both Index and Get File
-    private static byte[] receiveDataReliably(DatagramSocket socket, InetAddress address, String infoCommand, String fetchCommand) throws IOException {
+    // The index as text, null if it could not be fetched
+    private static String fetchIndex(DatagramSocket socket, InetAddress address) throws IOException {
+        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            TransferResult result = receiveDataReliably(socket, address, "INDEX", "FETCH_INDEX",
+                    (totalChunks, size, version, deflated) -> new OrderedSink(data));
+            if (result == TransferResult.RECEIVED) {
+                return data.toString(StandardCharsets.UTF_8);
+            }
+            if (result != TransferResult.STALE) {
+                return null;
+            }
+            // The directory changed so often that our generation is gone, list the current one
+            System.out.println("[Warning] Index changed while it was fetched, start over");
+        }
+        System.out.println("[Error] Index kept changing, gave up");
+        return null;
+    }
+
+    // All files at once on this socket, "*" stands for every file in the index
+    private static void getFiles(DatagramSocket socket, InetAddress address, String[] filenames) {
+        try {
+            if (filenames.length == 1 && filenames[0].equals("*")) {
+                String list = fetchIndex(socket, address);
+                if (list == null) return;
+                filenames = list.isBlank() ? new String[0] : list.trim().split("\n");
+            }
+            System.out.println("Request " + filenames.length + " files");
+
+            int defaultBuffer = socket.getReceiveBufferSize();
+            socket.setReceiveBufferSize(Math.max(defaultBuffer, MUX_RECEIVE_BUFFER));
+            RttEstimator rtt = new RttEstimator(TIMEOUT, MIN_RTO, MAX_RTO);
+            TransferMux mux = new TransferMux(socket, address, serverPort, windowSize, MAX_ACTIVE_TRANSFERS, GIVE_UP, MAX_RETRIES, rtt);
+            ByteArrayOutputStream[] data = new ByteArrayOutputStream[filenames.length];
+            for (int i = 0; i < filenames.length; i++) {
+                data[i] = new ByteArrayOutputStream();
+                mux.add(filenames[i], sinkFor(filenames[i], data[i]), cache == null ? null : cache.version(filenames[i]));
+            }
+
+            long start = System.nanoTime();
+            List<TransferResult> outcomes;
+            try {
+                outcomes = mux.run();
+            } finally {
+                socket.setReceiveBufferSize(defaultBuffer);
+            }
+            long elapsed = (System.nanoTime() - start) / 1_000_000;
+
+            int received = 0;
+            int unchanged = 0;
+            for (int i = 0; i < filenames.length; i++) {
+                if (outcomes.get(i) == TransferResult.RECEIVED) received++;
+                if (outcomes.get(i) == TransferResult.UNCHANGED) unchanged++;
+                showFile(filenames[i], data[i], outcomes.get(i));
+            }
+            System.out.println("Fetched " + received + "/" + filenames.length + " files, " + unchanged + " unchanged, in " + elapsed + " ms");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void streamFile(DatagramSocket socket, InetAddress address, String filename) {
+        try {
+            System.out.println("Stream file: " + filename);
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            TransferResult result = receiveStream(socket, address, filename, sinkFor(filename, data));
+            showFile(filename, data, result);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // With --out chunks go straight to <out>/<filename> and an interrupted download resumes, otherwise they are collected to print
+    private static ChunkSink.Factory sinkFor(String filename, ByteArrayOutputStream memory) {
+        if (outDir == null) {
+            return (totalChunks, size, version, deflated) -> deflated ? new InflatingSink(memory) : new OrderedSink(memory);
+        }
+        File target = targetFile(filename);
+        return (totalChunks, size, version, deflated) -> {
+            // A compressed transfer keeps its chunks in "<filename>.deflate" until they are inflated into the target
+            File chunks = deflated ? new File(target.getPath() + InflatingSink.DEFLATE_SUFFIX) : target;
+            ChunkFile file = ChunkFile.open(chunks, totalChunks, size, version);
+            if (file.getReceivedCount() > 0) {
+                System.out.println("Resume " + chunks + ", " + file.getReceivedCount() + " of " + totalChunks + " chunks already received");
+            }
+            return deflated ? new InflatingSink(file, target) : file;
+        };
+    }
+
+    // " if=<version>" of the cached copy of filename, empty without --cache or a copy
+    private static String ifCached(String filename) throws IOException {
+        String version = cache == null ? null : cache.version(filename);
+        return version == null ? "" : " if=" + version;
+    }
+
+    // Take an unchanged file from the cache, or keep a received one there, then save or print it
+    private static void showFile(String filename, ByteArrayOutputStream memory, TransferResult result) throws IOException {
+        if (result == TransferResult.UNCHANGED) {
+            File copy = cache.file(filename);
+            if (outDir != null) {
+                Files.copy(copy.toPath(), targetFile(filename).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                memory.write(Files.readAllBytes(copy.toPath()));
+            }
+        } else if (result == TransferResult.RECEIVED && cache != null) {
+            if (outDir != null) {
+                cache.put(filename, targetFile(filename));
+            } else {
+                cache.put(filename, memory.toByteArray());
+            }
+        }
+
+        boolean received = result == TransferResult.RECEIVED || result == TransferResult.UNCHANGED;
+        if (outDir != null) {
+            File target = targetFile(filename);
+            if (received) {
+                System.out.println("Saved " + target + " (" + target.length() + " bytes)");
+            } else if (new File(target.getPath() + ChunkFile.PART_SUFFIX).exists()
+                    || new File(target.getPath() + InflatingSink.DEFLATE_SUFFIX + ChunkFile.PART_SUFFIX).exists()) {
+                System.out.println("[Warning] " + filename + " is incomplete, get it again to resume");
+            }
+        } else if (received) {
+            System.out.println("\n--- Start of File: " + filename + " ---");
+            System.out.println(memory.toString(StandardCharsets.UTF_8));
+            System.out.println("--- End of File ---\n");
+        }
+    }
+
+    // Only the last path element, a filename must not write outside --out
+    private static File targetFile(String filename) {
+        return new File(outDir, new File(filename).getName());
+    }
+
+    // Stop-and-Wait (window 1) or Selective Repeat (window > 1) protocol, used by both Index and Get File
+    // Returns RECEIVED once every chunk is in the sink, UNCHANGED if the info request carried "if=" and the server still has that version
+    private static TransferResult receiveDataReliably(DatagramSocket socket, InetAddress address, String infoCommand, String fetchCommand,
+                                               ChunkSink.Factory sinkFactory) throws IOException {
         // Get meta info (existence/chunks)
         long totalChunks = -1;
+        // Extra "key=value" tokens that must be repeated on every fetch, e.g. the index generation
+        String fetchOptions = "";
+        ChunkFormat format = null;
+        // Whole-file CRC32C, only sent to clients that negotiated crc
+        String digest = null;
+        // File handle for binary chunk requests, only INFO of servers that support them has one
+        String handle = null;
+        RttEstimator rtt = new RttEstimator(TIMEOUT, MIN_RTO, MAX_RTO);
+        int session = newSession();
         for (int retries = 0; retries < MAX_RETRIES; retries++) {
             try {
-                sendPacket(socket, address, infoCommand);
+                long sentAt = System.nanoTime();
+                sendPacket(socket, address, infoCommand + formatRequest(session));
 
                 byte[] buffer = new byte[1024];
                 DatagramPacket response = new DatagramPacket(buffer, buffer.length);
-                socket.receive(response);
-
-                String res = new String(response.getData(), 0, response.getLength(), StandardCharsets.UTF_8).trim();
+                String res;
+                do {
+                    // Late chunks and replies of earlier transfers are skipped
+                    response.setLength(buffer.length);
+                    socket.receive(response);
+                    res = new String(response.getData(), 0, response.getLength(), StandardCharsets.UTF_8).trim();
+                } while (!isReplyFor(res, session));
 
                 if (res.startsWith("ok ")) {
-                    totalChunks = Long.parseLong(res.split(" ")[1]);
+                    if (retries == 0) {
+                        // The info exchange is the first RTT sample of the session
+                        rtt.sample((System.nanoTime() - sentAt) / 1_000_000.0);
+                    }
+                    String[] parts = res.split(" ");
+                    totalChunks = Long.parseLong(parts[1]);
+                    for (int i = 2; i < parts.length; i++) {
+                        if (parts[i].startsWith("gen=")) {
+                            fetchOptions += " " + parts[i];
+                        }
+                    }
+                    // The server answers with the chunk layout it accepted
+                    format = ChunkFormat.fromReply(parts);
+                    fetchOptions += format.requestOptions();
+                    digest = getOption(parts, "crc32c");
+                    handle = getOption(parts, "handle");
                     break;
-                } else if (res.equals("error")) {
+                } else if (res.startsWith("busy ")) {
+                    waitBusy(retryAfter(res));
+                } else if (res.startsWith("unchanged")) {
+                    System.out.println("Not modified since the cached copy");
+                    return TransferResult.UNCHANGED;
+                } else {
                     System.out.println("[ERROR] File not found");
-                    return null;
+                    return TransferResult.NOT_FOUND;
                 }
             } catch (SocketTimeoutException e) {
                 System.out.println("[Warning] Timeout waiting for info, retry (" + (retries + 1) + "/" + MAX_RETRIES + ")");
@@ -120,62 +649,322 @@ public class UDPClient {
 
         if (totalChunks == -1) {
             System.out.println("[ERROR] Failed to get metadata");
-            return null;
+            return TransferResult.FAILED;
         }
 
-        System.out.println("Size: " + totalChunks + " chunks. Start receiving");
+        System.out.println("Size: " + totalChunks + " chunks of " + format.chunkSize + " bytes" + (format.deflate ? ", deflate compressed" : "") + ". Start receiving");
+
+        // Fetch chunks: "FETCH_INDEX <id>" / "FETCH_FILE <filename> <id>" with the options, or binary with a handle
+        String fetchSuffix = fetchOptions;
+        WindowedTransfer.ChunkRequester requester = handle != null
+                ? binaryRequester(socket, address, serverPort, format, Integer.parseInt(handle))
+                : chunkId -> sendPacket(socket, address, fetchCommand + " " + chunkId + fetchSuffix);
+        TransferStats stats = new TransferStats();
+        try (ChunkSink sink = sinkFactory.open((int) totalChunks, format.chunkSize, digest, format.deflate)) {
+            TransferResult outcome;
+            if (windowSize > 1) {
+                outcome = receiveChunksPipelined(socket, requester, (int) totalChunks, format, sink, rtt, stats);
+            } else {
+                outcome = receiveChunksStopAndWait(socket, requester, (int) totalChunks, format, sink, rtt, stats);
+            }
+            if (outcome != TransferResult.RECEIVED) {
+                return outcome;
+            }
+            if (!verifyDigest(sink, digest)) {
+                return TransferResult.FAILED;
+            }
+            sink.complete();
+            return TransferResult.RECEIVED;
+        }
+    }
 
-        // Fetch chunks
-        ByteArrayOutputStream completeBytes = new ByteArrayOutputStream();
+    // Stop-and-Wait: one request at a time, the next chunk is only asked for once the previous one arrived
+    private static TransferResult receiveChunksStopAndWait(DatagramSocket socket, WindowedTransfer.ChunkRequester requester,
+                                                    int totalChunks, ChunkFormat format, ChunkSink sink,
+                                                    RttEstimator rtt, TransferStats stats) throws IOException {
+        try {
+            for (int i = 0; i < totalChunks; i++) {
+                // Already stored by an earlier, interrupted download
+                if (sink.has(i)) continue;
 
-        for (int i = 0; i < totalChunks; i++) {
-            boolean received = false;
-            int retries = 0;
+                boolean received = false;
+                int retries = 0;
+                long firstSentAt = System.currentTimeMillis();
 
-            while (!received && retries < MAX_RETRIES) {
-                try {
-                    // Construct fetch command: e.g., "FETCH_INDEX 0" or "FETCH_FILE file.txt 0"
-                    String cmd = fetchCommand + " " + i;
-                    sendPacket(socket, address, cmd);
-
-                    // Inner loop to handle incoming packets for this specific attempt
-                    // Do not have to immediately resend the request if it is a wrong packet
-                    while (true) {
-                        byte[] dataBuffer = new byte[CHUNK_SIZE + HEADER_SIZE];
-                        DatagramPacket dataPacket = new DatagramPacket(dataBuffer, dataBuffer.length);
-
-                        // This receive() will throw SocketTimeoutException if legitimate timeout occurs
-                        socket.receive(dataPacket);
-
-                        ByteBuffer wrapped = ByteBuffer.wrap(dataPacket.getData(), 0, dataPacket.getLength());
-
-                        // Read the first 4 bytes as int
-                        int receivedSeqNum = wrapped.getInt();
-
-                        // Verify sequence number
-                        if (receivedSeqNum == i) {
-                            // Correct packet, extract data starting from offset 4
-                            completeBytes.write(dataPacket.getData(), HEADER_SIZE, dataPacket.getLength() - HEADER_SIZE);
-                            received = true;
-                            // Success, break the inner receive loop
-                            break;
-                        } else {
-                            // Received wrong chunk like delayed packet from previous retry, just gnore it
-                            System.out.println("[Warning] Ignored duplicate or wrong chunk: " + receivedSeqNum + ", expected: " + i);
+                while (!received && System.currentTimeMillis() - firstSentAt < GIVE_UP) {
+                    try {
+                        // Fetch request: e.g., "FETCH_INDEX 0" or "FETCH_FILE file.txt 0"
+                        long sentAt = System.nanoTime();
+                        socket.setSoTimeout((int) rtt.getRto());
+                        requester.request(i);
+
+                        // Inner loop to handle incoming packets for this specific attempt
+                        // Do not have to immediately resend the request if it is a wrong packet
+                        while (true) {
+                            byte[] dataBuffer = new byte[format.headerSize() + format.chunkSize];
+                            DatagramPacket dataPacket = new DatagramPacket(dataBuffer, dataBuffer.length);
+
+                            // This receive() will throw SocketTimeoutException if legitimate timeout occurs
+                            socket.receive(dataPacket);
+
+                            if (isStale(dataPacket.getData(), dataPacket.getLength(), format.session)) {
+                                return TransferResult.STALE;
+                            }
+                            long busy = busyDelay(dataPacket.getData(), dataPacket.getLength(), format.session);
+                            if (busy >= 0) {
+                                // The request was turned away, not lost: ask again once the server is ready
+                                waitBusy(busy);
+                                retries++;
+                                requester.request(i);
+                                continue;
+                            }
+                            if (!format.verify(dataPacket.getData(), dataPacket.getLength())) {
+                                // Damaged on the way, ask for it again right away, no RTT sample from this exchange
+                                System.out.println("[Warning] Chunk " + i + " failed the CRC32C check, fetch it again");
+                                stats.onCorrupt();
+                                retries++;
+                                requester.request(i);
+                                continue;
+                            }
+                            if (!format.belongs(dataPacket.getData())) {
+                                System.out.println("[Warning] Ignored a chunk of another transfer");
+                                continue;
+                            }
+
+                            // Read the first 4 bytes as int
+                            int receivedSeqNum = ChunkFormat.getSequence(dataPacket.getData());
+
+                            // Verify sequence number
+                            if (receivedSeqNum == i) {
+                                // Correct packet, extract data after the header
+                                int length = dataPacket.getLength() - format.headerSize();
+                                sink.write(i, dataPacket.getData(), format.headerSize(), length);
+                                if (retries == 0) {
+                                    rtt.sample((System.nanoTime() - sentAt) / 1_000_000.0);
+                                }
+                                stats.onChunk(length);
+                                received = true;
+                                // Success, break the inner receive loop
+                                break;
+                            } else {
+                                // Received wrong chunk like delayed packet from previous retry, just gnore it
+                                System.out.println("[Warning] Ignored duplicate or wrong chunk: " + receivedSeqNum + ", expected: " + i);
+                            }
                         }
+                    } catch (SocketTimeoutException e) {
+                        retries++;
+                        rtt.backoff();
+                        stats.onRetransmit();
+                        System.out.println("[Warning] Timeout chunk " + i + ", retry " + retries + ", rto " + rtt.getRto() + " ms");
+                    }
+                }
+
+                if (!received) {
+                    System.out.println("[Error] Failed to retrieve chunk " + i);
+                    return TransferResult.FAILED;
+                }
+            }
+        } finally {
+            socket.setSoTimeout(TIMEOUT);
+        }
+
+        stats.report(rtt, "");
+        return TransferResult.RECEIVED;
+    }
+
+    // Selective Repeat: keep a window of requests in flight and retransmit each chunk on its own timer
+    private static TransferResult receiveChunksPipelined(DatagramSocket socket, WindowedTransfer.ChunkRequester requester,
+                                                  int totalChunks, ChunkFormat format, ChunkSink sink,
+                                                  RttEstimator rtt, TransferStats stats) throws IOException {
+        WindowedTransfer transfer = new WindowedTransfer(totalChunks, windowSize, GIVE_UP, sink, rtt, stats);
+
+        byte[] dataBuffer = new byte[format.headerSize() + format.chunkSize];
+        DatagramPacket dataPacket = new DatagramPacket(dataBuffer, dataBuffer.length);
+
+        try {
+            transfer.fillWindow(requester);
+
+            while (!transfer.isComplete()) {
+                // Only block until the earliest retransmission timer fires
+                long wait = transfer.nextDeadline() - System.currentTimeMillis();
+                socket.setSoTimeout((int) Math.max(1, Math.min(wait, MAX_RTO)));
+
+                try {
+                    dataPacket.setLength(dataBuffer.length);
+                    socket.receive(dataPacket);
+
+                    if (isStale(dataPacket.getData(), dataPacket.getLength(), format.session)) {
+                        return TransferResult.STALE;
+                    }
+                    long busy = busyDelay(dataPacket.getData(), dataPacket.getLength(), format.session);
+                    if (busy >= 0) {
+                        System.out.println("[Warning] Server busy, slow down for " + busy + " ms");
+                        transfer.onBusy(busy);
+                        continue;
+                    }
+                    if (!format.verify(dataPacket.getData(), dataPacket.getLength())) {
+                        // Damaged on the way, dropped like a lost packet so its timer fetches it again
+                        System.out.println("[Warning] Dropped a chunk that failed the CRC32C check");
+                        stats.onCorrupt();
+                        continue;
+                    }
+                    if (!format.belongs(dataPacket.getData())) {
+                        System.out.println("[Warning] Ignored a chunk of another transfer");
+                        continue;
+                    }
+
+                    int receivedSeqNum = ChunkFormat.getSequence(dataPacket.getData());
+                    if (transfer.onChunk(receivedSeqNum, dataPacket.getData(), format.headerSize(), dataPacket.getLength() - format.headerSize())) {
+                        transfer.fillWindow(requester);
+                    } else {
+                        System.out.println("[Warning] Ignored duplicate or wrong chunk: " + receivedSeqNum);
                     }
                 } catch (SocketTimeoutException e) {
-                    retries++;
-                    System.out.println("[Warning] Timeout chunk " + i + ", retry (" + retries + "/" + MAX_RETRIES + ")");
+                    // Fall through to the retransmission check
+                }
+
+                if (!transfer.retransmitExpired(System.currentTimeMillis(), requester)) {
+                    System.out.println("[Error] Failed to retrieve chunk " + transfer.getFailedChunk());
+                    return TransferResult.FAILED;
                 }
             }
+        } finally {
+            socket.setSoTimeout(TIMEOUT);
+        }
 
-            if (!received) {
-                System.out.println("[Error] Failed to retrieve chunk " + i);
-                return null;
+        stats.report(rtt, transfer.describeWindow());
+        return TransferResult.RECEIVED;
+    }
+
+    // Server push: one STREAM request, then only NACK bitmaps for the chunks that were lost
+    private static TransferResult receiveStream(DatagramSocket socket, InetAddress address, String filename, ChunkSink.Factory sinkFactory) throws IOException {
+        // Sized for the chunk we ask for, the accepted one is never larger
+        byte[] dataBuffer = new byte[Math.max(chunkSize, DEFAULT_CHUNK_SIZE) + HEADER_SIZE];
+        DatagramPacket dataPacket = new DatagramPacket(dataBuffer, dataBuffer.length);
+
+        // Start the push, the server answers "ok <chunks> [chunk=<size>] [crc=1 crc32c=<hex>]" before the first chunk
+        int totalChunks = -1;
+        ChunkFormat format = null;
+        String digest = null;
+        int session = newSession();
+        for (int retries = 0; retries < MAX_RETRIES && totalChunks == -1; retries++) {
+            sendPacket(socket, address, "STREAM " + filename + formatRequest(session) + ifCached(filename));
+            try {
+                while (true) {
+                    dataPacket.setLength(dataBuffer.length);
+                    socket.receive(dataPacket);
+
+                    String res = new String(dataPacket.getData(), 0, dataPacket.getLength(), StandardCharsets.UTF_8).trim();
+                    if (!isReplyFor(res, session)) {
+                        // A chunk of an earlier push, ignore it
+                        continue;
+                    }
+                    if (res.startsWith("ok ")) {
+                        String[] parts = res.split(" ");
+                        totalChunks = Integer.parseInt(parts[1]);
+                        format = ChunkFormat.fromReply(parts);
+                        digest = getOption(parts, "crc32c");
+                        break;
+                    } else if (res.startsWith("busy ")) {
+                        waitBusy(retryAfter(res));
+                        break;
+                    } else if (res.startsWith("unchanged")) {
+                        System.out.println("Not modified since the cached copy");
+                        return TransferResult.UNCHANGED;
+                    } else {
+                        System.out.println("[ERROR] File not found");
+                        return TransferResult.NOT_FOUND;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                System.out.println("[Warning] Timeout waiting for stream, retry (" + (retries + 1) + "/" + MAX_RETRIES + ")");
+            }
+        }
+
+        if (totalChunks == -1) {
+            System.out.println("[ERROR] Failed to start stream");
+            return TransferResult.FAILED;
+        }
+
+        System.out.println("Size: " + totalChunks + " chunks of " + format.chunkSize + " bytes" + (format.deflate ? ", deflate compressed" : "") + ". Start receiving");
+
+        BitSet received = new BitSet(totalChunks);
+        int idleRounds = 0;
+        int nacks = 0;
+        int corrupt = 0;
+
+        try (ChunkSink sink = sinkFactory.open(totalChunks, format.chunkSize, digest, format.deflate)) {
+            // Chunks kept from an earlier download are dropped from the push and never NACKed
+            for (int chunkId = 0; chunkId < totalChunks; chunkId++) {
+                if (sink.has(chunkId)) received.set(chunkId);
+            }
+            int receivedCount = received.cardinality();
+
+            socket.setSoTimeout(STREAM_IDLE_TIMEOUT);
+            while (receivedCount < totalChunks) {
+                try {
+                    dataPacket.setLength(dataBuffer.length);
+                    socket.receive(dataPacket);
+
+                    long busy = busyDelay(dataPacket.getData(), dataPacket.getLength(), format.session);
+                    if (busy >= 0) {
+                        // Our NACK was turned away, the next idle timeout sends it again
+                        waitBusy(busy);
+                        continue;
+                    }
+                    // A damaged chunk counts as lost, the next NACK asks for it again
+                    if (!format.verify(dataPacket.getData(), dataPacket.getLength())) {
+                        corrupt++;
+                        continue;
+                    }
+                    // Chunks of an earlier push of the same file must not fill this one
+                    if (!format.belongs(dataPacket.getData())) continue;
+                    int seq = ChunkFormat.getSequence(dataPacket.getData());
+                    int length = dataPacket.getLength() - format.headerSize();
+                    if (seq < 0 || seq >= totalChunks || received.get(seq)) continue;
+
+                    sink.write(seq, dataPacket.getData(), format.headerSize(), length);
+                    received.set(seq);
+                    receivedCount++;
+                    idleRounds = 0;
+                } catch (SocketTimeoutException e) {
+                    // The push has paused, ask again for whatever is still missing
+                    if (++idleRounds > MAX_RETRIES) {
+                        System.out.println("[Error] Failed to retrieve chunk " + received.nextClearBit(0));
+                        return TransferResult.FAILED;
+                    }
+                    sendNack(socket, address, filename, received, totalChunks, format.requestOptions());
+                    nacks++;
+                }
+            }
+
+            System.out.println("Received " + totalChunks + " chunks with " + nacks + " NACK(s), " + corrupt + " failed the CRC32C check");
+            if (!verifyDigest(sink, digest)) {
+                return TransferResult.FAILED;
+            }
+            sink.complete();
+        } finally {
+            socket.setSoTimeout(TIMEOUT);
+        }
+        return TransferResult.RECEIVED;
+    }
+
+    // NACK <base> <hex bitmap> <filename> [chunk=<size>], base is the first missing chunk, bit i marks chunk base + i as missing
+    private static void sendNack(DatagramSocket socket, InetAddress address, String filename, BitSet received, int totalChunks, String options) throws IOException {
+        int base = received.nextClearBit(0);
+        int span = Math.min(MAX_NACK_CHUNKS, totalChunks - base);
+
+        byte[] bitmap = new byte[(span + 7) / 8];
+        int lastSet = 0;
+        for (int i = 0; i < span; i++) {
+            if (!received.get(base + i)) {
+                bitmap[i / 8] |= (byte) (1 << (i % 8));
+                lastSet = i;
             }
         }
 
-        return completeBytes.toByteArray();
+        // Trailing zero bytes carry no information
+        byte[] trimmed = Arrays.copyOf(bitmap, lastSet / 8 + 1);
+        sendPacket(socket, address, "NACK " + base + " " + HexFormat.of().formatHex(trimmed) + " " + filename + options);
     }
-}
\ No newline at end of file
+}
@@ -1,11 +1,25 @@
 package assignment4;
 
+import common.AsyncLog;
+import common.CompressedCache;
+import common.ContentArena;
+import common.DigestCache;
+import common.DirectoryIndex;
+import common.MappedFileCache;
+import common.ServerMetrics;
+
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.file.InvalidPathException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /*
  * UDPServer
@@ -13,193 +27,758 @@ import java.util.concurrent.Executors;
  * 2. Recv packet
  * 4. Send response (using sender's IP/port)
  * 5. Close
+ *
+ * Engines:
+ * - socket:  one DatagramSocket receiver thread, requests are handed to a FairScheduler worker pool
+ * - channel: <loops> DatagramChannels bound with SO_REUSEPORT, every loop receives into its own
+ *            direct buffer and handles the request on the same thread (no executor hop),
+ *            only STREAM/NACK pushes go to a FairScheduler, and so do requests that would hash or compress
+ *            a file whose digest or deflate form is not cached yet
+ *
+ * Requests: text commands ("INFO <filename> ...", "FETCH_FILE <filename> <id> ...", ...), and for clients that
+ * asked INFO for a file handle ("bin=1"), the fixed-size binary chunk request (BinaryRequest), parsed in place
+ *
+ * Content arena (--arena): files up to ARENA_MAX_FILE are preloaded into one off-heap buffer (ContentArena),
+ * INFO and chunk requests for them need no stat, no cache lock and no open; a chunk is one bulk copy out of the arena
+ *
+ * Overload: the scheduler queues are bounded per client and in total, a request that does not fit
+ * is answered with "busy retry=<ms>" right away so the client waits instead of timing out
+ *
+ * Metrics: every command is counted and timed into a latency histogram, next to bytes/packets sent,
+ * repeated chunk requests and queue depth, readable with "STATS" from the server's own host and over JMX
+ * (assignment4:type=UDPServer), per-request log lines are only printed with --log, by a background thread
  */
 
 public class UDPServer {
     private static final int PORT = 12345;
-    private static final int CHUNK_SIZE = 1024;
-    private static final int HEADER_SIZE = 4;
+    // --port runs another replica of the server next to this one, e.g. for striped downloads
+    private static int port = PORT;
+    // Chunk size for clients that do not negotiate one
+    private static final int DEFAULT_CHUNK_SIZE = 1024;
+    private static final int MIN_CHUNK_SIZE = 256;
+    // Option keys that may trail a request as "key=value", everything before them is the filename
+    private static final String[] OPTION_KEYS = {"bin", "chunk", "crc", "enc", "gen", "if", "session"};
+    // Pacing rate for STREAM pushes, so a burst does not overflow the client socket buffer
+    private static final long STREAM_RATE = 32L * 1024 * 1024; // bytes per second
+    // Open/mapped files shared by all workers, so a chunk request does not open the file again
+    private static final int FILE_CACHE_ENTRIES = 256;
+    private static final long FILE_CACHE_BYTES = 512L * 1024 * 1024;
+    private static final MappedFileCache fileCache = new MappedFileCache(FILE_CACHE_ENTRIES, FILE_CACHE_BYTES);
+    // Small files preloaded off-heap (--arena), null when off; chunks of other files go through fileCache
+    private static final long ARENA_MAX_FILE = 256 * 1024;
+    private static final long ARENA_MAX_BYTES = 256L * 1024 * 1024;
+    private static ContentArena contentArena;
+    // Whole-file CRC32C for INFO, hashed once per file version
+    private static final DigestCache digestCache = new DigestCache(FILE_CACHE_ENTRIES);
+    // Deflate form of files for clients that ask for "enc=deflate", compressed once per file version
+    private static final long COMPRESSED_CACHE_BYTES = 64L * 1024 * 1024;
+    private static final CompressedCache compressedCache = new CompressedCache(FILE_CACHE_ENTRIES, COMPRESSED_CACHE_BYTES);
+    // Largest chunk a client may negotiate, default fits a 9000 byte (jumbo) MTU: 9000 - 20 IP - 8 UDP - 12 Header
+    private static int maxChunkSize = 8960;
+    // One packet buffer per worker thread: Header (Sequence Number [+ Session] [+ CRC32C]) + File Data
+    private static final ThreadLocal<byte[]> chunkBuffer = ThreadLocal.withInitial(() -> new byte[ChunkFormat.MAX_HEADER_SIZE + maxChunkSize]);
+    // Requests waiting for a worker, in total and of one client address
+    private static int maxQueued = 4096;
+    private static final int MAX_QUEUED_PER_CLIENT = 1024;
+    // Token bucket of every client address: sustained requests per second, the bucket holds a tenth of a second of them
+    private static double clientRate = 50_000;
+    private static final double CLIENT_BURST_SECONDS = 0.1;
+    // Workers of the push scheduler (both engines), each paced STREAM holds one for its whole push
+    private static final int STREAM_WORKERS = 16;
+    // Scheduler counters are printed this often while they change
+    private static final long STATS_INTERVAL = 10_000; // ms
+    // Commands timed by the metrics, the first word of the request
+    private static final ServerMetrics metrics = new ServerMetrics("assignment4", "UDPServer",
+            "INDEX", "FETCH_INDEX", "INFO", "FETCH_FILE", "STREAM", "NACK", "PROBE");
+    private static final LongAdder sentBytes = metrics.counter("bytesSent");
+    private static final LongAdder sentPackets = metrics.counter("packetsSent");
+    // FETCH_FILE requests for a chunk the same client asked for moments ago, i.e. its retransmissions
+    private static final LongAdder repeatedChunkRequests = metrics.counter("repeatedChunkRequests");
+    // Binary requests that did not parse, counted instead of printed so junk traffic can not flood stdout
+    private static final LongAdder invalidRequests = metrics.counter("invalidRequests");
+    private static final RepeatFilter repeatFilter = new RepeatFilter();
+    // STREAM pushes a NACK may ask repairs of
+    private static final RecentStreams recentStreams = new RecentStreams();
+    // Handles given out by INFO for binary chunk requests
+    private static final FileHandles fileHandles = new FileHandles();
+    // Last chunk layout of every worker, consecutive binary requests of one transfer reuse it instead of allocating one
+    private static final ThreadLocal<ChunkFormat[]> lastFormat = ThreadLocal.withInitial(() -> new ChunkFormat[1]);
+    // Per-request log lines (--log), null when off
+    private static final int LOG_QUEUE = 8192;
+    private static AsyncLog requestLog;
     private static File directory;
+    private static DirectoryIndex directoryIndex;
 
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.out.println("Usage: java assignment4.UDPServer <directory_path>");
+            System.out.println("Usage: java assignment4.UDPServer <directory_path> [--engine socket|channel] [--loops <n>] [--max-chunk <size>] [--queue <n>] [--client-rate <requests/s>] [--log] [--arena] [--port <port>]");
             return;
         }
 
+        String engine = "socket";
+        boolean arena = false;
+        int loops = Runtime.getRuntime().availableProcessors();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--engine") && i + 1 < args.length) {
+                engine = args[++i];
+            } else if (args[i].equals("--loops") && i + 1 < args.length) {
+                loops = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--max-chunk") && i + 1 < args.length) {
+                maxChunkSize = Math.max(MIN_CHUNK_SIZE, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("--queue") && i + 1 < args.length) {
+                maxQueued = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("--client-rate") && i + 1 < args.length) {
+                clientRate = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--log")) {
+                requestLog = new AsyncLog("udp-log", LOG_QUEUE);
+            } else if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--arena")) {
+                arena = true;
+            } else {
+                System.out.println("Usage: java assignment4.UDPServer <directory_path> [--engine socket|channel] [--loops <n>] [--max-chunk <size>] [--queue <n>] [--client-rate <requests/s>] [--log] [--arena] [--port <port>]");
+                return;
+            }
+        }
+
         directory = new File(args[0]);
         if (!directory.exists() || !directory.isDirectory()) {
             System.out.println("[Error] Invalid directory");
             return;
         }
+        directoryIndex = new DirectoryIndex(directory);
+        if (arena) {
+            contentArena = new ContentArena(directory, ARENA_MAX_FILE, ARENA_MAX_BYTES);
+            metrics.gauge("arenaFiles", contentArena::getFileCount);
+            metrics.gauge("arenaBytes", contentArena::getUsedBytes);
+            System.out.println("Content arena: " + contentArena.getFileCount() + " files, " + contentArena.getUsedBytes() + " bytes off-heap");
+        }
+        if (requestLog != null) {
+            metrics.gauge("logDropped", requestLog::getDropped);
+        }
+        metrics.register();
 
-        System.out.println("Server started on port " + PORT);
+        System.out.println("Server started on port " + port);
         System.out.println("Files directory: " + directory.getAbsolutePath());
 
-        ExecutorService threadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        try (DatagramSocket socket = new DatagramSocket(PORT)) {
+        if (engine.equals("channel")) {
+            runChannelEngine(loops);
+        } else {
+            runSocketEngine();
+        }
+    }
+
+    private static void runSocketEngine() {
+        FairScheduler scheduler = newScheduler("udp-worker", Runtime.getRuntime().availableProcessors());
+        // STREAM/NACK pushes are paced and long running, they get workers of their own so single chunks keep flowing
+        FairScheduler streamScheduler = newScheduler("udp-stream", STREAM_WORKERS);
+        try (DatagramSocket socket = new DatagramSocket(port)) {
+            PacketSender sender = counting((data, length, target) -> socket.send(new DatagramPacket(data, length, target)));
+            // One buffer for every datagram (PROBEs fill it), a worker gets a copy of only the bytes received
+            byte[] receiveBuffer = new byte[requestBufferSize()];
+            DatagramPacket requestPacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
             while (true) {
-                // Allocate new buffer for each request to ensure thread safety
-                byte[] receiveBuffer = new byte[1024];
-                DatagramPacket requestPacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+                requestPacket.setLength(receiveBuffer.length);
                 socket.receive(requestPacket);
 
-                threadPool.execute(() -> handleClientRequest(socket, requestPacket));
+                SocketAddress client = requestPacket.getSocketAddress();
+                byte[] request = Arrays.copyOf(receiveBuffer, requestPacket.getLength());
+                boolean push = UDPClient.startsWith(request, request.length, "STREAM ") || UDPClient.startsWith(request, request.length, "NACK ");
+                long retryAfter = (push ? streamScheduler : scheduler).submit(client, () -> handleClientRequest(sender, client,
+                        request, request.length));
+                if (retryAfter > 0) {
+                    sendBusy(sender, client, request, request.length, retryAfter);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static FairScheduler newScheduler(String name, int workers) {
+        FairScheduler scheduler = new FairScheduler(name, workers, maxQueued, MAX_QUEUED_PER_CLIENT, clientRate,
+                (int) Math.max(1, clientRate * CLIENT_BURST_SECONDS));
+        metrics.gauge("queued." + name, scheduler::getQueued);
+        Thread reporter = new Thread(() -> reportStats(name, scheduler), name + "-stats");
+        reporter.setDaemon(true);
+        reporter.start();
+        return scheduler;
+    }
+
+    // Print queue depth and drop counts whenever they changed since the last report
+    private static void reportStats(String name, FairScheduler scheduler) {
+        String last = scheduler.describe();
+        while (true) {
+            try {
+                Thread.sleep(STATS_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            String current = scheduler.describe();
+            if (!current.equals(last)) {
+                System.out.println("[Stats] " + name + ": " + current);
+                last = current;
+            }
+        }
+    }
+
+    // "busy retry=<ms> [session=<id>]" for a request the scheduler turned away, cheap enough for the receive thread
+    private static void sendBusy(PacketSender sender, SocketAddress client, byte[] request, int length, long retryAfter) throws IOException {
+        String[] parts = new String(request, 0, length, StandardCharsets.UTF_8).trim().split(" ");
+        String session = getOption(parts, "session");
+        sendStringResponse(sender, client, "busy retry=" + retryAfter + (session == null ? "" : " session=" + session));
+    }
+
+    private static void runChannelEngine(int loops) {
+        // STREAM/NACK pushes are paced and long running, they must not block a receive loop
+        FairScheduler streamScheduler = newScheduler("udp-stream", STREAM_WORKERS);
+        // Cache misses of INFO and deflate fetches, hashing or compressing a large file must not block one either
+        FairScheduler prepareScheduler = newScheduler("udp-prepare", Runtime.getRuntime().availableProcessors());
+        List<DatagramChannel> channels = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < loops; i++) {
+                DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+                boolean reusePort = channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+                if (!reusePort && !channels.isEmpty()) {
+                    // Without SO_REUSEPORT every loop shares the first channel
+                    channel.close();
+                    channel = channels.get(0);
+                } else {
+                    if (reusePort) {
+                        // The kernel spreads clients across all channels bound to the same port
+                        channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    }
+                    channel.bind(new InetSocketAddress(port));
+                    channels.add(channel);
+                }
+
+                DatagramChannel loopChannel = channel;
+                Thread thread = new Thread(() -> receiveLoop(loopChannel, streamScheduler, prepareScheduler), "udp-loop-" + i);
+                thread.start();
+                threads.add(thread);
+            }
+            System.out.println("Channel engine: " + loops + " loop(s) on " + channels.size() + " channel(s)");
+
+            for (Thread thread : threads) {
+                thread.join();
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void receiveLoop(DatagramChannel channel, FairScheduler streamScheduler, FairScheduler prepareScheduler) {
+        // Buffers owned by this loop, allocated once and reused for every packet
+        ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(requestBufferSize());
+        ByteBuffer sendBuffer = ByteBuffer.allocateDirect(ChunkFormat.MAX_HEADER_SIZE + maxChunkSize);
+        byte[] request = new byte[requestBufferSize()];
+
+        PacketSender sender = counting((data, length, target) -> {
+            sendBuffer.clear();
+            sendBuffer.put(data, 0, length).flip();
+            channel.send(sendBuffer, target);
+        });
+
+        while (channel.isOpen()) {
+            try {
+                receiveBuffer.clear();
+                SocketAddress client = channel.receive(receiveBuffer);
+                receiveBuffer.flip();
+                int length = receiveBuffer.remaining();
+                receiveBuffer.get(request, 0, length);
+
+                if (UDPClient.startsWith(request, length, "STREAM ") || UDPClient.startsWith(request, length, "NACK ")) {
+                    submit(streamScheduler, channel, sender, client, request, length);
+                } else if (!isCached(request, length)) {
+                    submit(prepareScheduler, channel, sender, client, request, length);
+                } else {
+                    handleClientRequest(sender, client, request, length);
+                }
+            } catch (IOException | RuntimeException e) {
+                // One bad datagram must not end the loop, its channel would keep receiving with nobody reading
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Hand a copy of the request to a worker of scheduler, a full queue is answered with busy right away
+    private static void submit(FairScheduler scheduler, DatagramChannel channel, PacketSender sender, SocketAddress client,
+                               byte[] request, int length) throws IOException {
+        byte[] copy = Arrays.copyOf(request, length);
+        long retryAfter = scheduler.submit(client, () -> handleClientRequest(channelSender(channel), client, copy, copy.length));
+        if (retryAfter > 0) {
+            sendBusy(sender, client, copy, copy.length, retryAfter);
+        }
+    }
+
+    // True if the request can be answered without hashing or compressing a file: the digest and deflate form it needs
+    // are cached (or the file is in the arena), so a receive loop answers it itself
+    private static boolean isCached(byte[] request, int length) {
+        try {
+            if (BinaryRequest.isBinary(request, length)) {
+                if (!BinaryRequest.isValid(request, length) || (BinaryRequest.getFlags(request) & BinaryRequest.FLAG_DEFLATE) == 0) return true;
+                File file = fileHandles.get(BinaryRequest.getHandle(request));
+                return file == null || compressedCache.isCached(file);
+            }
+            boolean info = UDPClient.startsWith(request, length, "INFO ");
+            if (!info && !UDPClient.startsWith(request, length, "FETCH_FILE ")) return true;
+            String command = new String(request, 0, length, StandardCharsets.UTF_8).trim();
+            String[] parts = command.split(" ");
+            boolean deflate = "deflate".equals(getOption(parts, "enc"));
+            // A chunk of the file itself is a plain read
+            if (!info && !deflate) return true;
+
+            File file = new File(directory, info ? stripOptions(command.substring(5)).trim() : parts[1]);
+            ContentArena.Entry stored = stored(file);
+            // A missing file is answered at once
+            if (stored == null && !file.isFile()) return true;
+            boolean digest = info && ("1".equals(getOption(parts, "crc")) || getOption(parts, "if") != null);
+            return (!digest || stored != null || digestCache.cached(file) != null) && (!deflate || compressedCache.isCached(file));
+        } catch (IOException | RuntimeException e) {
+            // Let a worker run the request and report what is wrong with it
+            return false;
         }
     }
 
-    private static void handleClientRequest(DatagramSocket socket, DatagramPacket requestPacket) {
+    // Sender for threads that do not own a loop buffer, channel.send() copies heap buffers itself
+    private static PacketSender channelSender(DatagramChannel channel) {
+        return counting((data, length, target) -> channel.send(ByteBuffer.wrap(data, 0, length), target));
+    }
+
+    // Count every packet and byte that goes out through sender
+    private static PacketSender counting(PacketSender sender) {
+        return (data, length, target) -> {
+            sender.send(data, length, target);
+            sentPackets.increment();
+            sentBytes.add(length);
+        };
+    }
+
+    // PROBE datagrams are as large as the biggest chunk packet, every other request is smaller
+    private static int requestBufferSize() {
+        return ChunkFormat.MAX_HEADER_SIZE + maxChunkSize;
+    }
+
+    private static void handleClientRequest(PacketSender sender, SocketAddress client, byte[] request, int length) {
+        if (BinaryRequest.isBinary(request, length)) {
+            handleBinaryRequest(sender, client, request, length);
+            return;
+        }
+
+        long start = System.nanoTime();
+        String[] parts = null;
         try {
-            String command = new String(requestPacket.getData(), 0, requestPacket.getLength(), StandardCharsets.UTF_8).trim();
-            System.out.println("Received: " + command);
+            String command = new String(request, 0, length, StandardCharsets.UTF_8).trim();
+            if (requestLog != null) {
+                // Do not print the padding of PROBE datagrams
+                requestLog.log("Received: " + (command.startsWith("PROBE ") ? "PROBE " + length : command));
+            }
 
-            InetAddress clientAddress = requestPacket.getAddress();
-            int clientPort = requestPacket.getPort();
+            // Handle Commands, every command may carry "chunk=<size>", "crc=1", "session=<id>" and "enc=deflate" to negotiate the chunk layout
+            parts = command.split(" ");
+            ChunkFormat format = new ChunkFormat(negotiateChunkSize(getOption(parts, "chunk")), "1".equals(getOption(parts, "crc")),
+                    UDPClient.parseSession(getOption(parts, "session")), "deflate".equals(getOption(parts, "enc")));
 
-            // Handle Commands
-            if (command.equals("INDEX")) {
-                handleIndexInfo(socket, clientAddress, clientPort);
+            if (parts[0].equals("INDEX")) {
+                handleIndexInfo(sender, client, format, parts);
             } else if (command.startsWith("FETCH_INDEX ")) {
                 try {
-                    int chunkId = Integer.parseInt(command.split(" ")[1]);
-                    handleIndexChunk(socket, clientAddress, clientPort, chunkId);
+                    // FETCH_INDEX <id> [gen=<generation>] [chunk=<size>]
+                    int chunkId = Integer.parseInt(parts[1]);
+                    String generation = getOption(parts, "gen");
+                    handleIndexChunk(sender, client, chunkId, generation == null ? -1 : Long.parseLong(generation), format);
                 } catch (Exception e) {
                     System.out.println("[Error] Invalid FETCH_INDEX command");
                 }
             } else if (command.startsWith("INFO ")) {
-                String filename = command.substring(5).trim();
-                handleFileInfo(socket, clientAddress, clientPort, filename);
+                // INFO <filename> [chunk=<size>]
+                String filename = stripOptions(command.substring(5)).trim();
+                handleFileInfo(sender, client, filename, format, parts);
             } else if (command.startsWith("FETCH_FILE ")) {
-                String[] parts = command.split(" ");
-                if (parts.length == 3) {
+                // FETCH_FILE <filename> <id> [chunk=<size>]
+                Integer chunkId = parts.length >= 3 && stripOptions(command).split(" ").length == 3 ? parseChunkId(parts[2]) : null;
+                if (chunkId != null) {
                     String filename = parts[1];
-                    int chunkId = Integer.parseInt(parts[2]);
-                    handleFileChunk(socket, clientAddress, clientPort, filename, chunkId);
+                    if (repeatFilter.isRepeat(client, format.session, filename.hashCode(), chunkId)) {
+                        repeatedChunkRequests.increment();
+                    }
+                    handleFileChunk(sender, client, new File(directory, filename), chunkId, format);
                 } else {
-                    System.out.println("[Error] Invalid FETCH_FILE command");
+                    sendStringResponse(sender, client, "error" + sessionReply(format));
                 }
+            } else if (command.startsWith("STREAM ")) {
+                // STREAM <filename> [chunk=<size>]
+                String filename = stripOptions(command.substring(7)).trim();
+                handleFileStream(sender, client, filename, format, parts);
+            } else if (command.startsWith("NACK ")) {
+                // NACK <base> <hex bitmap> <filename> [chunk=<size>], bit i set means chunk base + i is missing
+                Integer base = parts.length >= 4 ? parseChunkId(parts[1]) : null;
+                byte[] bitmap = parts.length >= 4 ? parseBitmap(parts[2]) : null;
+                if (base != null && bitmap != null && bitmap.length * 8 <= UDPClient.MAX_NACK_CHUNKS) {
+                    int nameStart = 5 + parts[1].length() + 1 + parts[2].length() + 1;
+                    String filename = stripOptions(command.substring(Math.min(nameStart, command.length()))).trim();
+                    handleNack(sender, client, filename, base, bitmap, format);
+                } else {
+                    sendStringResponse(sender, client, "error" + sessionReply(format));
+                }
+            } else if (command.startsWith("PROBE ")) {
+                // PROBE <size> <padding>: echo a datagram of the same size, used for path MTU discovery
+                handleProbe(sender, client, length);
+            } else if (command.equals("STATS")) {
+                handleStats(sender, client);
             } else {
-                sendStringResponse(socket, clientAddress, clientPort, "Unknown command");
+                sendStringResponse(sender, client, "Unknown command");
             }
+        } catch (InvalidPathException e) {
+            // A filename no path can have, e.g. one with a NUL
+            replyError(sender, client, parts);
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            if (parts != null) {
+                metrics.record(parts[0], start);
+            }
         }
     }
 
-    private static void sendStringResponse(DatagramSocket socket, InetAddress address, int port, String message) throws IOException {
-        byte[] data = message.getBytes(StandardCharsets.UTF_8);
-        DatagramPacket packet = new DatagramPacket(data, data.length, address, port);
-        socket.send(packet);
+    private static void replyError(PacketSender sender, SocketAddress client, String[] parts) {
+        String session = parts == null ? null : getOption(parts, "session");
+        try {
+            sendStringResponse(sender, client, "error" + (session == null ? "" : " session=" + session));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
-    private static String getFileListString() {
-        File[] files = directory.listFiles();
-        StringBuilder sb = new StringBuilder();
-        if (files != null) {
-            for (File f : files) {
-                if (f.isFile()) {
-                    sb.append(f.getName()).append("\n");
+    // Binary FETCH (BinaryRequest): every field is read straight from the request buffer, no String is made
+    // and nothing is allocated on this path unless --log is on or the handle is unknown
+    private static void handleBinaryRequest(PacketSender sender, SocketAddress client, byte[] request, int length) {
+        long start = System.nanoTime();
+        try {
+            if (!BinaryRequest.isValid(request, length) || BinaryRequest.getOpcode(request) != BinaryRequest.OP_FETCH) {
+                invalidRequests.increment();
+                if (requestLog != null) {
+                    requestLog.log("Invalid binary request from " + client);
                 }
+                return;
+            }
+            int session = BinaryRequest.getSession(request);
+            int handle = BinaryRequest.getHandle(request);
+            int chunkId = BinaryRequest.getChunkId(request);
+            if (requestLog != null) {
+                requestLog.log("Received: FETCH handle=" + handle + " " + chunkId + " session=" + session);
+            }
+
+            File file = fileHandles.get(handle);
+            if (file == null) {
+                // Handle of another server run, the client has to start over with INFO
+                sendStringResponse(sender, client, "error" + (session == 0 ? "" : " session=" + session));
+                return;
+            }
+            int flags = BinaryRequest.getFlags(request);
+            ChunkFormat format = chunkFormat(clampChunkSize(BinaryRequest.getChunkSize(request)),
+                    (flags & BinaryRequest.FLAG_CRC) != 0, session, (flags & BinaryRequest.FLAG_DEFLATE) != 0);
+
+            if (repeatFilter.isRepeat(client, session, handle, chunkId)) {
+                repeatedChunkRequests.increment();
             }
+            handleFileChunk(sender, client, file, chunkId, format);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            metrics.record("FETCH_FILE", start);
+        }
+    }
+
+    // This thread's last chunk layout if it matches, otherwise a new one that becomes the last
+    private static ChunkFormat chunkFormat(int chunkSize, boolean crc, int session, boolean deflate) {
+        ChunkFormat[] last = lastFormat.get();
+        if (last[0] == null || !last[0].matches(chunkSize, crc, session, deflate)) {
+            last[0] = new ChunkFormat(chunkSize, crc, session, deflate);
+        }
+        return last[0];
+    }
+
+    private static void sendStringResponse(PacketSender sender, SocketAddress client, String message) throws IOException {
+        byte[] data = message.getBytes(StandardCharsets.UTF_8);
+        sender.send(data, data.length, client);
+    }
+
+    // Requested chunk size clamped to what this server allows, DEFAULT_CHUNK_SIZE if none was requested
+    private static int negotiateChunkSize(String requested) {
+        if (requested == null) return DEFAULT_CHUNK_SIZE;
+        try {
+            return clampChunkSize(Integer.parseInt(requested));
+        } catch (NumberFormatException e) {
+            return DEFAULT_CHUNK_SIZE;
+        }
+    }
+
+    private static int clampChunkSize(int requested) {
+        return Math.max(MIN_CHUNK_SIZE, Math.min(maxChunkSize, requested));
+    }
+
+    // Options the client negotiated, echoed in the ok reply as accepted, old clients get the reply they expect
+    private static String formatReply(String[] parts, ChunkFormat format) {
+        String reply = getOption(parts, "chunk") == null ? "" : " chunk=" + format.chunkSize;
+        return (format.crc ? reply + " crc=1" : reply) + sessionReply(format);
+    }
+
+    // " session=<id>" so a client running several transfers on one socket can tell the replies apart
+    private static String sessionReply(ChunkFormat format) {
+        return format.session == 0 ? "" : " session=" + format.session;
+    }
+
+    // Chunk id of a text request, null unless it is a number >= 0
+    private static Integer parseChunkId(String text) {
+        try {
+            int chunkId = Integer.parseInt(text);
+            return chunkId < 0 ? null : chunkId;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // NACK bitmap, null if it is not hex
+    private static byte[] parseBitmap(String hex) {
+        try {
+            return HexFormat.of().parseHex(hex);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Drop trailing known "key=value" tokens, what remains is the command and its arguments
+    private static String stripOptions(String text) {
+        String result = text.trim();
+        while (true) {
+            int space = result.lastIndexOf(' ');
+            String last = result.substring(space + 1);
+            boolean isOption = false;
+            for (String key : OPTION_KEYS) {
+                isOption |= last.startsWith(key + "=");
+            }
+            if (!isOption || space < 0) return result;
+            result = result.substring(0, space).trim();
         }
-        return sb.toString();
     }
 
-    // Handle INFO command: Calculate chunks for the index string
-    private static void handleIndexInfo(DatagramSocket socket, InetAddress address, int port) throws IOException {
-        byte[] listBytes = getFileListString().getBytes(StandardCharsets.UTF_8);
-        long totalChunks = (listBytes.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
-        sendStringResponse(socket, address, port, "ok " + totalChunks);
+    // Value of a trailing "key=value" token, or null if the request does not carry it
+    private static String getOption(String[] parts, String key) {
+        for (int i = parts.length - 1; i > 0; i--) {
+            if (parts[i].startsWith(key + "=")) {
+                return parts[i].substring(key.length() + 1);
+            }
+        }
+        return null;
     }
 
-    // Handle FETCH_INDEX command: Send a specific chunk of the index string
-    private static void handleIndexChunk(DatagramSocket socket, InetAddress address, int port, int chunkId) throws IOException {
-        byte[] listBytes = getFileListString().getBytes(StandardCharsets.UTF_8);
+    // Handle INDEX command: Calculate chunks for the current index snapshot
+    private static void handleIndexInfo(PacketSender sender, SocketAddress client, ChunkFormat format, String[] parts) throws IOException {
+        DirectoryIndex.Snapshot snapshot = directoryIndex.snapshot();
+        long totalChunks = (snapshot.bytes.length + format.chunkSize - 1) / format.chunkSize;
+        // The generation pins later FETCH_INDEX requests to this snapshot
+        sendStringResponse(sender, client, "ok " + totalChunks + " gen=" + snapshot.generation + formatReply(parts, format));
+    }
 
-        int start = chunkId * CHUNK_SIZE;
-        if (start >= listBytes.length) return; // Out of bounds
+    // Handle FETCH_INDEX command: Send a specific chunk of the requested (or current) index snapshot
+    private static void handleIndexChunk(PacketSender sender, SocketAddress client, int chunkId, long generation, ChunkFormat format) throws IOException {
+        DirectoryIndex.Snapshot snapshot = generation < 0 ? directoryIndex.snapshot() : directoryIndex.snapshot(generation);
+        if (snapshot == null) {
+            // Aged out of the retained snapshots, the client has to list again with INDEX
+            sendStringResponse(sender, client, "error stale gen=" + directoryIndex.snapshot().generation + sessionReply(format));
+            return;
+        }
+        byte[] listBytes = snapshot.bytes;
 
-        int length = Math.min(CHUNK_SIZE, listBytes.length - start);
+        long start = (long) chunkId * format.chunkSize;
+        if (start < 0 || start >= listBytes.length) return; // Out of bounds
 
-        ByteBuffer packetBuffer = ByteBuffer.allocate(HEADER_SIZE + length);
-        packetBuffer.putInt(chunkId);
-        packetBuffer.put(listBytes, start, length);
+        int length = (int) Math.min(format.chunkSize, listBytes.length - start);
 
-        byte[] dataToSend = packetBuffer.array();
-        DatagramPacket packet = new DatagramPacket(dataToSend, dataToSend.length, address, port);
-        socket.send(packet);
+        byte[] dataToSend = new byte[format.headerSize() + length];
+        System.arraycopy(listBytes, (int) start, dataToSend, format.headerSize(), length);
+        format.putHeader(dataToSend, chunkId, length);
+        sender.send(dataToSend, dataToSend.length, client);
     }
 
     // Handle INFO command: Check if file exists and calculate total chunks
-    private static void handleFileInfo(DatagramSocket socket, InetAddress address, int port, String filename) throws IOException {
+    private static void handleFileInfo(PacketSender sender, SocketAddress client, String filename, ChunkFormat format, String[] parts) throws IOException {
         File file = new File(directory, filename);
-        if (file.exists() && file.isFile()) {
-            long fileSize = file.length();
+        ContentArena.Entry stored = stored(file);
+        if (stored != null || (file.exists() && file.isFile())) {
+            if (sendIfUnchanged(sender, client, file, format, parts)) return;
+            // Chunks of the compressed form if the client asked for it and the file compresses
+            byte[] deflated = format.deflate ? compressedCache.deflated(file) : null;
+            long fileSize = deflated != null ? deflated.length : stored != null ? stored.length() : file.length();
             // Calculate total chunks needed, equal to ceiling division
-            long totalChunks = (fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
-            sendStringResponse(socket, address, port, "ok " + totalChunks);
+            long totalChunks = (fileSize + format.chunkSize - 1) / format.chunkSize;
+            sendStringResponse(sender, client, "ok " + totalChunks + formatReply(parts, format) + digestReply(file, format)
+                    + (deflated != null ? " enc=deflate" : "") + handleReply(file, parts));
         } else {
-            sendStringResponse(socket, address, port, "error");
+            sendStringResponse(sender, client, "error" + sessionReply(format));
         }
     }
 
-    // Handle FETCH_FILE command: Send a specific chunk of the file
-    private static void handleFileChunk(DatagramSocket socket, InetAddress address, int port, String filename, int chunkId) throws IOException {
+    // " handle=<n>" for clients that asked for one ("bin=1"), they request the chunks with BinaryRequest
+    private static String handleReply(File file, String[] parts) {
+        if (!"1".equals(getOption(parts, "bin"))) return "";
+        int handle = fileHandles.handle(file);
+        return handle == -1 ? "" : " handle=" + handle;
+    }
+
+    // Handle FETCH_FILE command (text or binary): Send a specific chunk of the file
+    private static void handleFileChunk(PacketSender sender, SocketAddress client, File file, int chunkId, ChunkFormat format) throws IOException {
+        // Copy the chunk straight from the cached mapping (or compressed form) into this thread's packet buffer
+        byte[] packetData = chunkBuffer.get();
+        int bytesRead = readChunk(file, chunkId, format, packetData);
+
+        if (bytesRead > 0) {
+            // Put Header: Write the chunkId as an integer (4 bytes), then the CRC32C if negotiated
+            format.putHeader(packetData, chunkId, bytesRead);
+
+            // Loss, delay, reordering and duplication are injected outside the server, see benchmark.ImpairmentProxy
+            sender.send(packetData, format.headerSize() + bytesRead, client);
+        }
+    }
+
+    // Handle STREAM command: Reply like INFO, then push every chunk without waiting for requests
+    private static void handleFileStream(PacketSender sender, SocketAddress client, String filename, ChunkFormat format, String[] parts) throws IOException {
         File file = new File(directory, filename);
-        if (!file.exists()) return;
+        ContentArena.Entry stored = stored(file);
+        if (stored == null && (!file.exists() || !file.isFile())) {
+            sendStringResponse(sender, client, "error" + sessionReply(format));
+            return;
+        }
+        if (sendIfUnchanged(sender, client, file, format, parts)) return;
+
+        byte[] deflated = format.deflate ? compressedCache.deflated(file) : null;
+        long fileSize = deflated != null ? deflated.length : stored != null ? stored.length() : file.length();
+        long totalChunks = (fileSize + format.chunkSize - 1) / format.chunkSize;
+        sendStringResponse(sender, client, "ok " + totalChunks + formatReply(parts, format) + digestReply(file, format)
+                + (deflated != null ? " enc=deflate" : ""));
+        if (deflated == null && format.deflate) {
+            // Pushed raw, the client knows from the reply
+            format = new ChunkFormat(format.chunkSize, format.crc, format.session, false);
+        }
 
-        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-            long offset = (long) chunkId * CHUNK_SIZE;
-            raf.seek(offset);
+        recentStreams.started(client, file, totalChunks, format);
 
-            byte[] fileBuffer = new byte[CHUNK_SIZE];
-            int bytesRead = raf.read(fileBuffer);
+        long start = System.nanoTime();
+        long bytesSent = 0;
+        for (int chunkId = 0; chunkId < totalChunks; chunkId++) {
+            bytesSent += sendChunk(sender, client, file, chunkId, format);
+            pace(start, bytesSent);
+        }
+    }
 
-            if (bytesRead > 0) {
-                // Allocate buffer: 4 bytes for Header (Sequence Number) + File Data
-                ByteBuffer packetBuffer = ByteBuffer.allocate(HEADER_SIZE + bytesRead);
+    // Handle NACK command: Resend only the chunks marked missing in the bitmap
+    // Only for a STREAM this client started lately with the same session, in the layout of that push
+    private static void handleNack(PacketSender sender, SocketAddress client, String filename, int base, byte[] bitmap, ChunkFormat format) throws IOException {
+        RecentStreams.Stream stream = recentStreams.find(client, format.session);
+        File file = new File(directory, filename);
+        if (stream == null || !stream.file.equals(file)) {
+            sendStringResponse(sender, client, "error" + sessionReply(format));
+            return;
+        }
 
-                // Put Header: Write the chunkId as an integer (4 bytes)
-                packetBuffer.putInt(chunkId);
+        long start = System.nanoTime();
+        long bytesSent = 0;
+        long end = Math.min(stream.totalChunks, (long) base + bitmap.length * 8);
+        for (long chunkId = base; chunkId < end; chunkId++) {
+            int i = (int) (chunkId - base);
+            if ((bitmap[i / 8] & (1 << (i % 8))) != 0) {
+                bytesSent += sendChunk(sender, client, stream.file, (int) chunkId, stream.format);
+                pace(start, bytesSent);
+            }
+        }
+    }
 
-                // Put Data: Write the actual file content
-                packetBuffer.put(fileBuffer, 0, bytesRead);
+    // Read one chunk through the file cache and send it with the sequence header, returns bytes sent
+    private static int sendChunk(PacketSender sender, SocketAddress client, File file, int chunkId, ChunkFormat format) throws IOException {
+        byte[] packetData = chunkBuffer.get();
+        int bytesRead = readChunk(file, chunkId, format, packetData);
+        if (bytesRead <= 0) return 0;
 
-                byte[] dataToSend = packetBuffer.array();
+        format.putHeader(packetData, chunkId, bytesRead);
+        sender.send(packetData, format.headerSize() + bytesRead, client);
+        return format.headerSize() + bytesRead;
+    }
 
-                DatagramPacket packet = new DatagramPacket(dataToSend, dataToSend.length, address, port);
+    // Copy chunk chunkId of the file, or of its deflate form, into the packet after the header, returns bytes copied
+    private static int readChunk(File file, int chunkId, ChunkFormat format, byte[] packet) throws IOException {
+        long start = (long) chunkId * format.chunkSize;
+        if (!format.deflate) {
+            ContentArena.Entry stored = stored(file);
+            if (stored != null) {
+                return stored.read(start, packet, format.headerSize(), format.chunkSize);
+            }
+            return fileCache.read(file, start, packet, format.headerSize(), format.chunkSize);
+        }
+        byte[] deflated = compressedCache.deflated(file);
+        if (deflated == null || start < 0 || start >= deflated.length) return 0;
+        int length = (int) Math.min(format.chunkSize, deflated.length - start);
+        System.arraycopy(deflated, (int) start, packet, format.headerSize(), length);
+        return length;
+    }
 
-                // START: DEBUG / TESTING SECTION
-                // ---------------------------------------------------------
+    // Conditional INFO/STREAM: "if=<crc32c>" names the version the client has a copy of,
+    // if the file still has that digest the single reply "unchanged crc32c=<hex>" is all that is sent
+    private static boolean sendIfUnchanged(PacketSender sender, SocketAddress client, File file, ChunkFormat format, String[] parts) throws IOException {
+        String version = getOption(parts, "if");
+        if (version == null) return false;
+        String digest = digest(file);
+        if (!version.equals(digest)) return false;
+        sendStringResponse(sender, client, "unchanged crc32c=" + digest + sessionReply(format));
+        return true;
+    }
 
-                // OPTION 1: Simulate Packet Loss (Recommended for testing reliability)
-                // Set probability to 0.3 (30% loss) or 0.5 (50% loss)
-                /*
-                if (Math.random() < 0.3) {
-                    System.out.println("[DEBUG] Simulating PACKET LOSS for Chunk " + chunkId);
-                    return; // Do not send the packet, forcing client to timeout
-                }
-                */
+    // " crc32c=<hex>" of the whole file for clients that verify chunks, cached until the file changes
+    private static String digestReply(File file, ChunkFormat format) throws IOException {
+        if (!format.crc) return "";
+        String digest = digest(file);
+        return digest == null ? "" : " crc32c=" + digest;
+    }
 
-                // OPTION 2: Simulate Network Latency (Delay)
-                // Client timeout is 2000ms, so we sleep for 2500ms to force timeout
-                /*
-                try {
-                    System.out.println("[DEBUG] Simulating LATENCY for Chunk " + chunkId);
-                    Thread.sleep(2500);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                */
+    // The file's entry in the content arena, null without --arena or if the file is not stored there
+    private static ContentArena.Entry stored(File file) {
+        return contentArena == null ? null : contentArena.get(file);
+    }
 
-                // ---------------------------------------------------------
-                // END: DEBUG / TESTING SECTION
+    // CRC32C of the file, the arena's for a stored file so it always matches the chunks sent from there
+    private static String digest(File file) throws IOException {
+        ContentArena.Entry stored = stored(file);
+        return stored != null ? stored.digest() : digestCache.digest(file);
+    }
 
-                socket.send(packet);
-            }
+    // Handle PROBE command: Reply "PROBE_OK" padded to the size of the probe
+    private static void handleProbe(PacketSender sender, SocketAddress client, int probeSize) throws IOException {
+        byte[] reply = new byte[Math.min(probeSize, ChunkFormat.MAX_HEADER_SIZE + maxChunkSize)];
+        Arrays.fill(reply, (byte) ' ');
+        byte[] status = "PROBE_OK".getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(status, 0, reply, 0, Math.min(status.length, reply.length));
+        sender.send(reply, reply.length, client);
+    }
+
+    // Handle STATS command: the metrics report as plain text, only for clients on this host
+    private static void handleStats(PacketSender sender, SocketAddress client) throws IOException {
+        if (!(client instanceof InetSocketAddress) || !((InetSocketAddress) client).getAddress().isLoopbackAddress()) {
+            sendStringResponse(sender, client, "error");
+            return;
+        }
+        sendStringResponse(sender, client, metrics.report());
+    }
+
+    // Sleep until sending bytesSent since start no longer exceeds STREAM_RATE
+    private static void pace(long start, long bytesSent) {
+        long due = start + bytesSent * 1_000_000_000L / STREAM_RATE;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
         }
     }
-}
\ No newline at end of file
+}
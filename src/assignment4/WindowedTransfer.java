@@ -0,0 +1,193 @@
+package assignment4;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * WindowedTransfer
+ * Selective Repeat receiver state for one transfer
+ * 1. Keep up to min(cwnd, maxWindow) chunk requests outstanding
+ * 2. Every outstanding chunk has its own retransmission timer, set from the RttEstimator's RTO
+ * 3. Chunks may arrive in any order, each one goes to the ChunkSink as it arrives
+ * 4. Chunks the sink already has (resumed transfer) are never requested
+ *
+ * Congestion window (AIMD, like TCP):
+ * - every chunk received grows cwnd, by 1 below ssthresh (slow start), else by 1/cwnd
+ * - a retransmission timeout sets ssthresh to half the flight size and cwnd back to 1
+ * - so does a "busy" reply, which also holds the timers for the retry-after the server asked for
+ *
+ * Window layout (chunk ids):
+ *   [ delivered ... | base ... in flight / buffered ... | nextToSend ... not requested yet ]
+ */
+class WindowedTransfer {
+
+    private static final double INITIAL_CWND = 4;
+
+    // Sends the fetch request for one chunk
+    interface ChunkRequester {
+        void request(int chunkId) throws IOException;
+    }
+
+    private final int totalChunks;
+    private final int maxWindow;
+    private final long giveUp;
+    private final ChunkSink sink;
+    private final RttEstimator rtt;
+    private final TransferStats stats;
+
+    // Chunk id -> retransmission deadline (ms) for requests still waiting for data
+    private final Map<Integer, Long> inFlight = new LinkedHashMap<>();
+    // Chunk id -> time (ns) of the last request, and of the first one for giving up
+    private final Map<Integer, Long> sentAt = new HashMap<>();
+    private final Map<Integer, Long> firstSentAt = new HashMap<>();
+    // Chunks that were requested more than once, their RTT is not sampled
+    private final BitSet retransmitted = new BitSet();
+    private final BitSet received = new BitSet();
+
+    private double cwnd;
+    private double ssthresh;
+    private int nextToSend = 0;
+    private int base = 0;
+    private int failedChunk = -1;
+
+    // giveUp: ms a chunk may stay unanswered before the transfer fails
+    WindowedTransfer(int totalChunks, int maxWindow, long giveUp, ChunkSink sink, RttEstimator rtt, TransferStats stats) {
+        this.totalChunks = totalChunks;
+        this.maxWindow = Math.max(1, maxWindow);
+        this.giveUp = giveUp;
+        this.sink = sink;
+        this.rtt = rtt;
+        this.stats = stats;
+        this.cwnd = Math.min(INITIAL_CWND, this.maxWindow);
+        this.ssthresh = this.maxWindow;
+
+        for (int chunkId = 0; chunkId < totalChunks; chunkId++) {
+            if (sink.has(chunkId)) received.set(chunkId);
+        }
+        advanceBase();
+        nextToSend = base;
+    }
+
+    // Send new requests until the window is full
+    void fillWindow(ChunkRequester requester) throws IOException {
+        // The window is measured from base so one slow chunk can not let an in-order sink buffer without limit
+        while (skipReceived() < totalChunks && nextToSend < base + maxWindow && inFlight.size() < (int) cwnd) {
+            sendRequest(requester, nextToSend);
+            firstSentAt.put(nextToSend, sentAt.get(nextToSend));
+            nextToSend++;
+        }
+    }
+
+    // Returns true if the chunk was accepted, false for duplicates or chunks we never asked for
+    boolean onChunk(int chunkId, byte[] data, int offset, int length) throws IOException {
+        if (chunkId < base || chunkId >= nextToSend || received.get(chunkId)) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+        if (!retransmitted.get(chunkId)) {
+            rtt.sample((now - sentAt.get(chunkId)) / 1_000_000.0);
+        }
+        growWindow();
+        stats.onChunk(length);
+
+        received.set(chunkId);
+        inFlight.remove(chunkId);
+        sentAt.remove(chunkId);
+        firstSentAt.remove(chunkId);
+
+        sink.write(chunkId, data, offset, length);
+        advanceBase();
+        return true;
+    }
+
+    // Resend every request whose timer expired, returns false once a chunk waited longer than giveUp
+    boolean retransmitExpired(long now, ChunkRequester requester) throws IOException {
+        boolean lossDetected = false;
+        for (Map.Entry<Integer, Long> entry : inFlight.entrySet()) {
+            if (entry.getValue() > now) continue;
+
+            int chunkId = entry.getKey();
+            if (System.nanoTime() - firstSentAt.get(chunkId) >= giveUp * 1_000_000L) {
+                failedChunk = chunkId;
+                return false;
+            }
+
+            if (!lossDetected) {
+                // One loss event per timer check: back off the RTO and shrink the window once
+                lossDetected = true;
+                rtt.backoff();
+                ssthresh = Math.max(2, inFlight.size() / 2.0);
+                cwnd = 1;
+            }
+
+            System.out.println("[Warning] Timeout chunk " + chunkId + ", retry, rto " + rtt.getRto() + " ms");
+            retransmitted.set(chunkId);
+            stats.onRetransmit();
+            requester.request(chunkId);
+            sentAt.put(chunkId, System.nanoTime());
+            entry.setValue(now + rtt.getRto());
+        }
+        return true;
+    }
+
+    // The server turned a request away (busy): shrink the window like on a loss and hold every timer until retryAfter ms
+    void onBusy(long retryAfter) {
+        ssthresh = Math.max(2, inFlight.size() / 2.0);
+        cwnd = 1;
+        long resumeAt = System.currentTimeMillis() + retryAfter;
+        for (Map.Entry<Integer, Long> entry : inFlight.entrySet()) {
+            entry.setValue(Math.max(entry.getValue(), resumeAt));
+        }
+    }
+
+    // Time (ms) of the earliest retransmission deadline
+    long nextDeadline() {
+        long earliest = Long.MAX_VALUE;
+        for (long deadline : inFlight.values()) {
+            earliest = Math.min(earliest, deadline);
+        }
+        return earliest;
+    }
+
+    boolean isComplete() {
+        return base == totalChunks;
+    }
+
+    int getFailedChunk() {
+        return failedChunk;
+    }
+
+    String describeWindow() {
+        return String.format("cwnd %.1f, ssthresh %.1f", cwnd, ssthresh);
+    }
+
+    // Move base past every chunk received so far
+    private void advanceBase() {
+        base = Math.min(received.nextClearBit(base), totalChunks);
+    }
+
+    // Move nextToSend past chunks that are already there, returns it
+    private int skipReceived() {
+        nextToSend = Math.min(received.nextClearBit(nextToSend), totalChunks);
+        return nextToSend;
+    }
+
+    private void growWindow() {
+        if (cwnd < ssthresh) {
+            cwnd += 1;
+        } else {
+            cwnd += 1 / cwnd;
+        }
+        cwnd = Math.min(cwnd, maxWindow);
+    }
+
+    private void sendRequest(ChunkRequester requester, int chunkId) throws IOException {
+        requester.request(chunkId);
+        sentAt.put(chunkId, System.nanoTime());
+        inFlight.put(chunkId, System.currentTimeMillis() + rtt.getRto());
+    }
+}
@@ -0,0 +1,328 @@
+package benchmark;
+
+import assignment2.LineCounts;
+import assignment3.FileServer;
+import assignment4.UDPServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * BenchmarkRunner
+ * Small JMH-style harness that runs as a plain main class, without the build; the JMH benchmarks in jmh/
+ * (gradle :jmh:jmh) measure the same operations with forks, warmup and dead-code protection
+ * 1. Generate fixtures (Fixtures)
+ * 2. For every benchmark: warmup iterations, then measured iterations
+ *    Each iteration repeats the operation for --time ms and records the average time per operation
+ * 3. Write all results as JSON (one object per line) so two runs can be compared with --compare
+ *
+ * Benchmarks:
+ * - lineCount.readLine / lineCount.mapped: LineCounts engines on files of varying size and line length
+ * - tcp.get: FileServer (threads mode) over loopback, one connection per get
+ * - udp.fetch: UDPServer over loopback, INFO + Stop-and-Wait FETCH_FILE for every chunk
+ *
+ * The servers run in this JVM on their usual port 12345, so no other server may be running
+ */
+public class BenchmarkRunner {
+
+    private static final String USAGE = "Usage: java benchmark.BenchmarkRunner [--warmup <n>] [--iterations <n>] [--time <ms>] [--filter <text>] [--out <file.json>]\n"
+            + "       java benchmark.BenchmarkRunner --compare <baseline.json> <current.json>";
+
+    private static final String SERVER_ADDRESS = "127.0.0.1";
+    private static final int PORT = 12345;
+    private static final int UDP_TIMEOUT = 1000;
+    private static final int UDP_CHUNK_SIZE = 1024;
+    private static final int UDP_HEADER_SIZE = 4;
+
+    private static final long[] TEXT_SIZES = {1L << 20, 64L << 20};
+    private static final int[] LINE_LENGTHS = {16, 200};
+    private static final int[] HTML_SIZES = {1 << 10, 64 << 10, 1 << 20};
+
+    private static int warmupIterations = 2;
+    private static int iterations = 5;
+    private static long iterationTime = 1000;
+    private static String filter = "";
+
+    // Where results go, System.out itself is muted while the servers log every request
+    private static final PrintStream console = System.out;
+
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    static class Result {
+        final String benchmark;
+        final Map<String, String> params;
+        final double score;      // ms/op
+        final double scoreError; // half of the min-max spread of the iterations
+        final double throughput; // MB/s
+
+        Result(String benchmark, Map<String, String> params, double score, double scoreError, double throughput) {
+            this.benchmark = benchmark;
+            this.params = params;
+            this.score = score;
+            this.scoreError = scoreError;
+            this.throughput = throughput;
+        }
+
+        String toJson() {
+            StringBuilder sb = new StringBuilder("{\"benchmark\": \"").append(benchmark).append("\", \"params\": {");
+            String separator = "";
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                sb.append(separator).append('"').append(param.getKey()).append("\": \"").append(param.getValue()).append('"');
+                separator = ", ";
+            }
+            sb.append("}, \"mode\": \"avgt\"");
+            sb.append(String.format(Locale.ROOT, ", \"score\": %.6f, \"scoreError\": %.6f, \"scoreUnit\": \"ms/op\", \"throughputMBps\": %.3f}",
+                    score, scoreError, throughput));
+            return sb.toString();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String out = "bench-results.json";
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--compare") && i + 2 < args.length) {
+                compare(new File(args[i + 1]), new File(args[i + 2]));
+                return;
+            } else if (args[i].equals("--warmup") && i + 1 < args.length) {
+                warmupIterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--iterations") && i + 1 < args.length) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--time") && i + 1 < args.length) {
+                iterationTime = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--filter") && i + 1 < args.length) {
+                filter = args[++i];
+            } else if (args[i].equals("--out") && i + 1 < args.length) {
+                out = args[++i];
+            } else {
+                console.println(USAGE);
+                return;
+            }
+        }
+
+        Fixtures fixtures = new Fixtures(Files.createTempDirectory("bench-fixtures").toFile());
+        console.println("Fixtures directory: " + fixtures.getDirectory().getAbsolutePath());
+
+        List<Result> results = new ArrayList<>();
+        try {
+            runLineCountBenchmarks(fixtures, results);
+            runTransferBenchmarks(fixtures, results);
+        } finally {
+            fixtures.delete();
+        }
+
+        writeResults(results, out);
+        console.println("Results written to " + out);
+
+        // The in-process servers keep non-daemon worker pools alive
+        System.exit(0);
+    }
+
+    private static void runLineCountBenchmarks(Fixtures fixtures, List<Result> results) throws Exception {
+        if (!selected("lineCount.readLine") && !selected("lineCount.mapped")) return;
+
+        for (long size : TEXT_SIZES) {
+            for (int lineLength : LINE_LENGTHS) {
+                File file = fixtures.textFile(size, lineLength);
+                Map<String, String> params = new LinkedHashMap<>();
+                params.put("size", String.valueOf(size));
+                params.put("lineLength", String.valueOf(lineLength));
+
+                measure(results, "lineCount.readLine", params, size, () -> LineCounts.countLines(file.getPath()));
+                measure(results, "lineCount.mapped", params, size, () -> LineCounts.countLinesMapped(file.getPath()));
+            }
+        }
+    }
+
+    private static void runTransferBenchmarks(Fixtures fixtures, List<Result> results) throws Exception {
+        if (!selected("tcp.get") && !selected("udp.fetch")) return;
+
+        List<File> pages = new ArrayList<>();
+        for (int size : HTML_SIZES) {
+            pages.add(fixtures.htmlFile(size));
+        }
+
+        // Keep the servers' console output out of the results
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            String directory = fixtures.getDirectory().getAbsolutePath();
+            startDaemon("bench-tcp-server", () -> FileServer.main(new String[]{directory, "--mode", "threads"}));
+            startDaemon("bench-udp-server", () -> UDPServer.main(new String[]{directory}));
+            Thread.sleep(500);
+
+            for (File page : pages) {
+                Map<String, String> params = new LinkedHashMap<>();
+                params.put("size", String.valueOf(page.length()));
+                measure(results, "tcp.get", params, page.length(), () -> tcpGet(page.getName(), page.length()));
+                measure(results, "udp.fetch", params, page.length(), () -> udpFetch(page.getName(), page.length()));
+            }
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    // One result object per line, the format compare() reads
+    static void writeResults(List<Result> results, String out) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(out))) {
+            writer.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                writer.println("  " + results.get(i).toJson() + (i + 1 < results.size() ? "," : ""));
+            }
+            writer.println("]");
+        }
+    }
+
+    private static boolean selected(String benchmark) {
+        return benchmark.contains(filter);
+    }
+
+    static void startDaemon(String name, Runnable server) {
+        Thread thread = new Thread(server, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void measure(List<Result> results, String benchmark, Map<String, String> params,
+                                long bytesPerOp, Operation operation) throws Exception {
+        if (!selected(benchmark)) return;
+
+        for (int i = 0; i < warmupIterations; i++) {
+            runIteration(operation);
+        }
+
+        double[] scores = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            scores[i] = runIteration(operation);
+        }
+
+        double sum = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (double score : scores) {
+            sum += score;
+            min = Math.min(min, score);
+            max = Math.max(max, score);
+        }
+        double mean = sum / scores.length;
+        double throughput = bytesPerOp / (1024.0 * 1024.0) / (mean / 1000.0);
+
+        Result result = new Result(benchmark, params, mean, (max - min) / 2, throughput);
+        results.add(result);
+        console.println(String.format(Locale.ROOT, "%-20s %-40s %12.4f ms/op %10.1f MB/s", benchmark, params, mean, throughput));
+    }
+
+    // Repeat the operation for iterationTime ms, returns the average ms per operation
+    private static double runIteration(Operation operation) throws Exception {
+        long start = System.nanoTime();
+        long deadline = start + iterationTime * 1_000_000L;
+        long ops = 0;
+        do {
+            operation.run();
+            ops++;
+        } while (System.nanoTime() < deadline);
+        return (System.nanoTime() - start) / 1_000_000.0 / ops;
+    }
+
+    // One get on a new connection, reads "ok <size> crc32c=<hex>" and exactly size bytes
+    static void tcpGet(String filename, long expectedSize) throws IOException {
+        try (Socket socket = new Socket(SERVER_ADDRESS, PORT)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("get " + filename + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 1 << 16);
+            StringBuilder status = new StringBuilder();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                status.append((char) b);
+            }
+            long size = Long.parseLong(status.toString().split(" ")[1]);
+
+            byte[] buffer = new byte[1 << 16];
+            long received = 0;
+            int n;
+            while (received < size && (n = in.read(buffer)) > 0) {
+                received += n;
+            }
+            if (received != expectedSize) {
+                throw new IOException("tcp.get received " + received + " of " + expectedSize + " bytes");
+            }
+        }
+    }
+
+    // INFO, then FETCH_FILE every chunk with one request in flight (the default UDPClient mode)
+    static void udpFetch(String filename, long expectedSize) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(UDP_TIMEOUT);
+            InetSocketAddress server = new InetSocketAddress(SERVER_ADDRESS, PORT);
+            byte[] buffer = new byte[UDP_CHUNK_SIZE + UDP_HEADER_SIZE];
+            DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+
+            String reply = new String(request(socket, server, "INFO " + filename, response, -1), StandardCharsets.UTF_8);
+            long totalChunks = Long.parseLong(reply.trim().split(" ")[1]);
+
+            long received = 0;
+            for (int i = 0; i < totalChunks; i++) {
+                received += request(socket, server, "FETCH_FILE " + filename + " " + i, response, i).length - UDP_HEADER_SIZE;
+            }
+            if (received != expectedSize) {
+                throw new IOException("udp.fetch received " + received + " of " + expectedSize + " bytes");
+            }
+        }
+    }
+
+    // Send a request and wait for its answer, expectedChunk -1 accepts any reply
+    private static byte[] request(DatagramSocket socket, InetSocketAddress server, String command,
+                                  DatagramPacket response, int expectedChunk) throws IOException {
+        byte[] data = command.getBytes(StandardCharsets.UTF_8);
+        for (int retries = 0; retries < 5; retries++) {
+            socket.send(new DatagramPacket(data, data.length, server));
+            try {
+                while (true) {
+                    response.setLength(response.getData().length);
+                    socket.receive(response);
+                    if (expectedChunk < 0 || ByteBuffer.wrap(response.getData()).getInt() == expectedChunk) {
+                        return Arrays.copyOf(response.getData(), response.getLength());
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // Resend
+            }
+        }
+        throw new IOException("No reply to " + command);
+    }
+
+    // Print the score change of every benchmark that is in both result files
+    private static void compare(File baselineFile, File currentFile) throws IOException {
+        Map<String, Double> baseline = readScores(baselineFile);
+        Map<String, Double> current = readScores(currentFile);
+
+        console.println(String.format(Locale.ROOT, "%-60s %12s %12s %9s", "benchmark", "baseline", "current", "change"));
+        for (Map.Entry<String, Double> entry : current.entrySet()) {
+            Double before = baseline.get(entry.getKey());
+            if (before == null) continue;
+            double change = (entry.getValue() - before) / before * 100;
+            console.println(String.format(Locale.ROOT, "%-60s %12.4f %12.4f %+8.1f%%", entry.getKey(), before, entry.getValue(), change));
+        }
+    }
+
+    // Benchmark + params -> score, from the one-object-per-line format written above
+    private static Map<String, Double> readScores(File file) throws IOException {
+        Pattern pattern = Pattern.compile("\"benchmark\": \"([^\"]+)\", \"params\": (\\{[^}]*\\}).*\"score\": ([0-9.]+)");
+        Map<String, Double> scores = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file.toPath())) {
+            Matcher matcher = pattern.matcher(line);
+            if (matcher.find()) {
+                scores.put(matcher.group(1) + " " + matcher.group(2), Double.parseDouble(matcher.group(3)));
+            }
+        }
+        return scores;
+    }
+}
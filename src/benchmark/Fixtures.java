@@ -0,0 +1,93 @@
+package benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/*
+ * Fixtures
+ * Synthetic input files, generated once per run into a temporary directory
+ * - text files of a given size and line length, for line counting
+ * - HTML files shaped like tests/*.html, for the TCP and UDP transfers
+ * The directory holds about 130 MB after a full run, delete() removes it
+ */
+class Fixtures {
+
+    private final File directory;
+
+    Fixtures(File directory) {
+        this.directory = directory;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    void delete() {
+        deleteDirectory(directory);
+    }
+
+    // Remove a directory of generated files (no subdirectories), what can not be deleted is reported and left
+    static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    Files.deleteIfExists(file.toPath());
+                } catch (IOException e) {
+                    System.err.println("[Warning] Could not delete " + file + ", e: " + e.getMessage());
+                }
+            }
+        }
+        try {
+            Files.deleteIfExists(directory.toPath());
+        } catch (IOException e) {
+            System.err.println("[Warning] Could not delete " + directory + ", e: " + e.getMessage());
+        }
+    }
+
+    // size bytes of lines, every line is lineLength bytes including its "\n"
+    File textFile(long size, int lineLength) throws IOException {
+        File file = new File(directory, "lines_" + size + "_" + lineLength + ".txt");
+        if (file.length() == size) return file;
+
+        byte[] line = new byte[lineLength];
+        Arrays.fill(line, (byte) 'x');
+        line[lineLength - 1] = '\n';
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            long written = 0;
+            while (written < size) {
+                int n = (int) Math.min(lineLength, size - written);
+                out.write(line, 0, n);
+                written += n;
+            }
+        }
+        return file;
+    }
+
+    // Same layout as tests/*.html, padded with paragraphs up to size bytes
+    File htmlFile(int size) throws IOException {
+        File file = new File(directory, "page_" + size + ".html");
+        if (file.length() == size) return file;
+
+        StringBuilder sb = new StringBuilder("<html>\n<p>test</p>\n");
+        String footer = "\n</html>";
+        int paragraph = 0;
+        while (sb.length() + footer.length() < size) {
+            sb.append("<p>paragraph ").append(paragraph++).append("</p>\n");
+        }
+        sb.setLength(Math.max(0, size - footer.length()));
+        sb.append(footer);
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+        }
+        return file;
+    }
+}
@@ -0,0 +1,311 @@
+package benchmark;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * ImpairmentProxy
+ * UDP relay between UDPClient and UDPServer that makes loopback behave like a bad network
+ * 1. Clients send to the proxy port, every client address gets its own upstream socket to the server,
+ *    so the server's replies can be routed back to the client they belong to
+ * 2. Every datagram, in both directions, goes through the same profile:
+ *    - loss:      dropped with this probability
+ *    - delay:     held for delay ms, plus a uniform -jitter..+jitter ms
+ *    - reorder:   with this probability held reorderDelay ms longer, so the packets behind it overtake it
+ *    - duplicate: with this probability sent a second time, 1 ms after the first copy
+ * 3. Held packets wait in a DelayQueue drained by one sender thread, packets due at the same time keep their order
+ * The Random is seeded (--seed), runs of the same traffic see about the same impairments
+ * (both directions draw from it, so exactly which packets are hit depends on thread timing)
+ */
+public class ImpairmentProxy implements AutoCloseable {
+
+    private static final String USAGE = "Usage: java benchmark.ImpairmentProxy <listen_port> <server_port> [--loss <0..1>] [--delay <ms>] [--jitter <ms>]"
+            + " [--reorder <0..1>] [--reorder-delay <ms>] [--duplicate <0..1>] [--seed <n>]";
+    private static final String SERVER_ADDRESS = "127.0.0.1";
+    private static final int MAX_DATAGRAM = 65507;
+    // Counters are printed this often by the standalone proxy
+    private static final long STATS_INTERVAL = 5000; // ms
+    // close() waits at most this long for each thread to leave
+    private static final long CLOSE_TIMEOUT = 1000; // ms
+
+    // How the proxy mistreats packets, the same in both directions
+    static class Profile {
+        final String name;
+        double loss;
+        double delay;        // ms
+        double jitter;       // ms
+        double reorder;
+        double reorderDelay = 10; // ms
+        double duplicate;
+
+        Profile(String name) {
+            this.name = name;
+        }
+
+        Profile loss(double loss) {
+            this.loss = loss;
+            return this;
+        }
+
+        Profile delay(double delay, double jitter) {
+            this.delay = delay;
+            this.jitter = jitter;
+            return this;
+        }
+
+        Profile reorder(double reorder, double reorderDelay) {
+            this.reorder = reorder;
+            this.reorderDelay = reorderDelay;
+            return this;
+        }
+
+        Profile duplicate(double duplicate) {
+            this.duplicate = duplicate;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s (loss %.3f, delay %.1f ms +-%.1f, reorder %.3f +%.1f ms, duplicate %.3f)",
+                    name, loss, delay, jitter, reorder, reorderDelay, duplicate);
+        }
+    }
+
+    // A datagram waiting for its send time
+    private static final class Held implements Delayed {
+        final long due; // ns
+        final long order;
+        final DatagramSocket socket;
+        final DatagramPacket packet;
+
+        Held(long due, long order, DatagramSocket socket, DatagramPacket packet) {
+            this.due = due;
+            this.order = order;
+            this.socket = socket;
+            this.packet = packet;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Held held = (Held) other;
+            int byDue = Long.compare(due, held.due);
+            return byDue != 0 ? byDue : Long.compare(order, held.order);
+        }
+    }
+
+    private final Profile profile;
+    private final InetSocketAddress server;
+    private final DatagramSocket front;
+    private final Random random;
+    // Client address -> socket that talks to the server on its behalf
+    private final Map<SocketAddress, DatagramSocket> upstreams = new ConcurrentHashMap<>();
+    private final DelayQueue<Held> held = new DelayQueue<>();
+    private final AtomicLong nextOrder = new AtomicLong();
+    private volatile boolean running = true;
+    private final List<Thread> threads = new CopyOnWriteArrayList<>();
+
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder reordered = new LongAdder();
+    private final LongAdder duplicated = new LongAdder();
+
+    ImpairmentProxy(int listenPort, int serverPort, Profile profile, long seed) throws IOException {
+        this.profile = profile;
+        this.server = new InetSocketAddress(SERVER_ADDRESS, serverPort);
+        this.front = new DatagramSocket(new InetSocketAddress(SERVER_ADDRESS, listenPort));
+        this.random = new Random(seed);
+
+        startThread("proxy-front", this::relayFromClients);
+        startThread("proxy-sender", this::sendHeld);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        Profile profile = new Profile("custom");
+        long seed = 1;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--loss") && i + 1 < args.length) {
+                profile.loss = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--delay") && i + 1 < args.length) {
+                profile.delay = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--jitter") && i + 1 < args.length) {
+                profile.jitter = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--reorder") && i + 1 < args.length) {
+                profile.reorder = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--reorder-delay") && i + 1 < args.length) {
+                profile.reorderDelay = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--duplicate") && i + 1 < args.length) {
+                profile.duplicate = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--seed") && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                System.out.println(USAGE);
+                return;
+            }
+        }
+
+        int listenPort = Integer.parseInt(args[0]);
+        ImpairmentProxy proxy = new ImpairmentProxy(listenPort, Integer.parseInt(args[1]), profile, seed);
+        System.out.println("Proxy on port " + listenPort + " -> " + proxy.server.getPort() + ", " + profile);
+        String last = "";
+        while (true) {
+            Thread.sleep(STATS_INTERVAL);
+            String current = proxy.describe();
+            if (!current.equals(last)) {
+                System.out.println("[Stats] " + current);
+                last = current;
+            }
+        }
+    }
+
+    String describe() {
+        return String.format("%d forwarded, %d dropped, %d reordered, %d duplicated, %d client(s)",
+                forwarded.sum(), dropped.sum(), reordered.sum(), duplicated.sum(), upstreams.size());
+    }
+
+    // Returns once every thread is gone, the port can be bound again right away (e.g. by the next proxy of a suite)
+    @Override
+    public void close() {
+        running = false;
+        front.close();
+        for (DatagramSocket upstream : upstreams.values()) {
+            upstream.close();
+        }
+        // Wake the sender thread so it sees running == false
+        held.add(new Held(System.nanoTime(), -1, null, null));
+        // A socket is only released once the thread blocked in receive() on it has left
+        try {
+            for (Thread thread : threads) {
+                thread.join(CLOSE_TIMEOUT);
+                if (thread.isAlive()) {
+                    System.out.println("[Warning] Proxy thread " + thread.getName() + " did not stop");
+                }
+            }
+        } catch (InterruptedException e) {
+            // Leave the rest to exit on their own, the caller sees the interrupt
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Client -> server
+    private void relayFromClients() {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        while (running) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                front.receive(packet);
+                SocketAddress client = packet.getSocketAddress();
+                DatagramSocket upstream = upstreams.get(client);
+                if (upstream == null) {
+                    upstream = openUpstream(client);
+                }
+                impair(upstream, packet, server);
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("[Error] Proxy receive failed, e: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private DatagramSocket openUpstream(SocketAddress client) throws SocketException {
+        DatagramSocket upstream = new DatagramSocket(new InetSocketAddress(SERVER_ADDRESS, 0));
+        upstreams.put(client, upstream);
+        startThread("proxy-upstream-" + upstream.getLocalPort(), () -> relayFromServer(upstream, client));
+        return upstream;
+    }
+
+    // Server -> one client
+    private void relayFromServer(DatagramSocket upstream, SocketAddress client) {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        while (running) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                upstream.receive(packet);
+                impair(front, packet, client);
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("[Error] Proxy upstream receive failed, e: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Apply the profile to one datagram that should go out through socket to target
+    private void impair(DatagramSocket socket, DatagramPacket packet, SocketAddress target) throws IOException {
+        if (random.nextDouble() < profile.loss) {
+            dropped.increment();
+            return;
+        }
+
+        double delay = profile.delay + (profile.jitter > 0 ? (random.nextDouble() * 2 - 1) * profile.jitter : 0);
+        if (random.nextDouble() < profile.reorder) {
+            delay += profile.reorderDelay;
+            reordered.increment();
+        }
+        boolean duplicate = random.nextDouble() < profile.duplicate;
+
+        DatagramPacket copy = new DatagramPacket(packet.getData().clone(), packet.getOffset(), packet.getLength(), target);
+        if (delay <= 0 && held.isEmpty()) {
+            // Nothing to wait for, skip the sender thread
+            socket.send(copy);
+        } else {
+            hold(socket, copy, delay);
+        }
+        forwarded.increment();
+
+        if (duplicate) {
+            hold(socket, copy, Math.max(0, delay) + 1);
+            duplicated.increment();
+        }
+    }
+
+    private void hold(DatagramSocket socket, DatagramPacket packet, double delay) {
+        long due = System.nanoTime() + (long) (Math.max(0, delay) * 1_000_000);
+        held.add(new Held(due, nextOrder.getAndIncrement(), socket, packet));
+    }
+
+    private void sendHeld() {
+        while (running) {
+            try {
+                Held next = held.take();
+                if (next.socket != null) {
+                    next.socket.send(next.packet);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("[Error] Proxy send failed, e: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        threads.add(thread);
+    }
+}
@@ -0,0 +1,171 @@
+package benchmark;
+
+import assignment4.UDPClient;
+import assignment4.UDPServer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/*
+ * ImpairmentSuite
+ * Goodput and completion time of UDPClient "get" through an ImpairmentProxy, for every profile and file size
+ * 1. UDPServer runs in this JVM on its usual port 12345, the proxy listens on PROXY_PORT in front of it
+ * 2. For every profile: start a proxy, then for every file size run UDPClient (--out, --port PROXY_PORT)
+ *    warmup + runs times, each run is one client session "get <file>" timed from start to exit
+ * 3. A run counts only if the downloaded file is byte for byte the original, failed runs are reported
+ * 4. Results are written in the BenchmarkRunner JSON format: score is the mean completion time (ms),
+ *    throughputMBps the goodput (file bytes / completion time), so BenchmarkRunner --compare works on them
+ *
+ * The client is the real one, so window, chunk size, compression, ... are whatever the --client arguments say
+ */
+public class ImpairmentSuite {
+
+    private static final String USAGE = "Usage: java benchmark.ImpairmentSuite [--runs <n>] [--warmup <n>] [--filter <text>] [--seed <n>]"
+            + " [--out <file.json>] [--client \"<UDPClient arguments>\"]";
+
+    private static final int SERVER_PORT = 12345;
+    private static final int PROXY_PORT = 12346;
+    private static final int[] FILE_SIZES = {16 << 10, 256 << 10, 2 << 20};
+    // Same profile in both directions, so e.g. 2% loss costs a request or its reply about 4% of the time
+    private static final ImpairmentProxy.Profile[] PROFILES = {
+            new ImpairmentProxy.Profile("clean"),
+            new ImpairmentProxy.Profile("loss1").loss(0.01),
+            new ImpairmentProxy.Profile("loss5").loss(0.05),
+            new ImpairmentProxy.Profile("delay20").delay(20, 5),
+            new ImpairmentProxy.Profile("reorder5").reorder(0.05, 10),
+            new ImpairmentProxy.Profile("duplicate5").duplicate(0.05),
+            new ImpairmentProxy.Profile("mixed").loss(0.02).delay(10, 5).reorder(0.02, 10).duplicate(0.01),
+    };
+
+    private static int runs = 3;
+    private static int warmup = 1;
+    private static String filter = "";
+    private static long seed = 1;
+    private static String[] clientArgs = {"--window", "16"};
+
+    private static final PrintStream console = System.out;
+    private static final InputStream stdin = System.in;
+
+    public static void main(String[] args) throws Exception {
+        String out = "impairment-results.json";
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--runs") && i + 1 < args.length) {
+                runs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--warmup") && i + 1 < args.length) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--filter") && i + 1 < args.length) {
+                filter = args[++i];
+            } else if (args[i].equals("--seed") && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--out") && i + 1 < args.length) {
+                out = args[++i];
+            } else if (args[i].equals("--client") && i + 1 < args.length) {
+                clientArgs = args[++i].trim().split("\\s+");
+            } else {
+                console.println(USAGE);
+                return;
+            }
+        }
+
+        Fixtures fixtures = new Fixtures(Files.createTempDirectory("impairment-fixtures").toFile());
+        File downloads = Files.createTempDirectory("impairment-downloads").toFile();
+        List<File> files = new ArrayList<>();
+        List<BenchmarkRunner.Result> results = new ArrayList<>();
+        try {
+            for (int size : FILE_SIZES) {
+                files.add(fixtures.htmlFile(size));
+            }
+            console.println("Fixtures directory: " + fixtures.getDirectory().getAbsolutePath());
+            console.println("Client arguments: " + String.join(" ", clientArgs));
+
+            // The server and the client print every transfer, keep that out of the results
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            String directory = fixtures.getDirectory().getAbsolutePath();
+            BenchmarkRunner.startDaemon("impairment-udp-server", () -> UDPServer.main(new String[]{directory}));
+            Thread.sleep(500);
+
+            for (ImpairmentProxy.Profile profile : PROFILES) {
+                if (!profile.name.contains(filter)) continue;
+                try (ImpairmentProxy proxy = new ImpairmentProxy(PROXY_PORT, SERVER_PORT, profile, seed)) {
+                    console.println(profile);
+                    for (File file : files) {
+                        measure(results, profile, file, downloads);
+                    }
+                    console.println("[Stats] proxy: " + proxy.describe());
+                }
+            }
+        } finally {
+            System.setOut(console);
+            System.setIn(stdin);
+            fixtures.delete();
+            Fixtures.deleteDirectory(downloads);
+        }
+
+        BenchmarkRunner.writeResults(results, out);
+        console.println("Results written to " + out);
+
+        // The in-process server keeps non-daemon worker threads alive
+        System.exit(0);
+    }
+
+    private static void measure(List<BenchmarkRunner.Result> results, ImpairmentProxy.Profile profile,
+                                File file, File downloads) throws IOException {
+        for (int i = 0; i < warmup; i++) {
+            download(file, downloads);
+        }
+
+        List<Double> times = new ArrayList<>();
+        for (int i = 0; i < runs; i++) {
+            double time = download(file, downloads);
+            if (time >= 0) {
+                times.add(time);
+            }
+        }
+
+        String line = String.format(Locale.ROOT, "  %-12s %9d bytes  ok %d/%d", profile.name, file.length(), times.size(), runs);
+        if (times.isEmpty()) {
+            console.println(line);
+            return;
+        }
+
+        double sum = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (double time : times) {
+            sum += time;
+            min = Math.min(min, time);
+            max = Math.max(max, time);
+        }
+        double mean = sum / times.size();
+        double goodput = file.length() / (1024.0 * 1024.0) / (mean / 1000.0);
+
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("profile", profile.name);
+        params.put("size", String.valueOf(file.length()));
+        params.put("client", String.join(" ", clientArgs));
+        results.add(new BenchmarkRunner.Result("udp.impaired", params, mean, (max - min) / 2, goodput));
+        console.println(line + String.format(Locale.ROOT, "  %10.1f ms (min %.1f, max %.1f)  %8.2f MB/s", mean, min, max, goodput));
+    }
+
+    // One client session "get <file>" through the proxy, returns its completion time in ms or -1 if the copy is not intact
+    private static double download(File file, File downloads) throws IOException {
+        File target = new File(downloads, file.getName());
+        // No leftovers, every run is a complete transfer and not a resume
+        for (File old : downloads.listFiles()) {
+            Files.delete(old.toPath());
+        }
+
+        List<String> args = new ArrayList<>(Arrays.asList(clientArgs));
+        args.addAll(List.of("--out", downloads.getPath(), "--port", String.valueOf(PROXY_PORT)));
+        System.setIn(new ByteArrayInputStream(("get " + file.getName() + "\nexit\n").getBytes(StandardCharsets.UTF_8)));
+
+        long start = System.nanoTime();
+        UDPClient.main(args.toArray(new String[0]));
+        double time = (System.nanoTime() - start) / 1_000_000.0;
+
+        boolean intact = target.isFile() && Files.mismatch(file.toPath(), target.toPath()) == -1;
+        return intact ? time : -1;
+    }
+}
@@ -0,0 +1,51 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * AsyncLog
+ * Per-request log lines, printed by a background thread instead of the thread serving the request
+ * 1. log() only offers the line to a bounded queue, a worker never waits for the console (System.out is synchronized)
+ * 2. The printer thread drains whatever is queued and writes it with one println
+ * 3. When the queue is full the line is dropped and counted, logging must not slow the server down
+ */
+public class AsyncLog {
+
+    private final BlockingQueue<String> lines;
+    private final LongAdder dropped = new LongAdder();
+
+    public AsyncLog(String name, int capacity) {
+        this.lines = new ArrayBlockingQueue<>(capacity);
+        Thread printer = new Thread(this::print, name);
+        printer.setDaemon(true);
+        printer.start();
+    }
+
+    public void log(String line) {
+        if (!lines.offer(line)) {
+            dropped.increment();
+        }
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private void print() {
+        List<String> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(lines.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            lines.drainTo(batch);
+            System.out.println(String.join(System.lineSeparator(), batch));
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/*
+ * CompressedCache
+ * Deflate (zlib format) form of served files, compressed once per file version and kept in a bounded LRU, keyed by path
+ * 1. A version is the file's size and mtime, a lookup costs one stat, a changed file is compressed again
+ * 2. Files larger than MAX_FILE_SIZE, or that do not shrink by at least MIN_SAVING, are sent raw (null),
+ *    that answer is cached as well so an incompressible file is only tried once per version
+ * 3. At most maxBytes of compressed data are kept, least recently used entries are dropped first
+ * 4. A result is only cached if the file did not change while it was compressed
+ * 5. Requests for a file that is being compressed wait for that run instead of starting another one
+ */
+public class CompressedCache {
+
+    // Larger files are never compressed, one entry must not take over the cache
+    // and the first request of a file waits for its compression (about 1 s for 8 MB of text)
+    private static final long MAX_FILE_SIZE = 8L * 1024 * 1024;
+    // Compressed size has to be at most this fraction of the original to be worth it
+    private static final double MIN_SAVING = 0.9;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private long cachedBytes = 0;
+
+    private static final class Entry {
+        private final long size;
+        private final long lastModified;
+        // null: the file is sent raw
+        private final byte[] deflated;
+
+        private Entry(long size, long lastModified, byte[] deflated) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.deflated = deflated;
+        }
+
+        private long bytes() {
+            return deflated == null ? 0 : deflated.length;
+        }
+    }
+
+    // Access order, so the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Compressions in progress, keyed by path
+    private final Map<String, CompletableFuture<byte[]>> running = new HashMap<>();
+
+    public CompressedCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    // The file's deflate stream, or null if it is missing, not a regular file, too large or does not compress
+    // The returned array is shared, callers must not modify it
+    public byte[] deflated(File file) throws IOException {
+        String key = file.getPath();
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            synchronized (this) {
+                remove(key);
+            }
+            return null;
+        }
+        if (!attrs.isRegularFile() || attrs.size() > MAX_FILE_SIZE) return null;
+
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+                return entry.deflated;
+            }
+        }
+
+        CompletableFuture<byte[]> mine = new CompletableFuture<>();
+        CompletableFuture<byte[]> other;
+        synchronized (this) {
+            other = running.putIfAbsent(key, mine);
+        }
+        if (other != null) {
+            return await(other);
+        }
+
+        // Compress outside the lock, lookups of other files do not wait for it
+        try {
+            byte[] deflated = deflate(file, size);
+            if (deflated.length > size * MIN_SAVING) {
+                deflated = null;
+            }
+
+            BasicFileAttributes after = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if (after.size() == size && after.lastModifiedTime().toMillis() == lastModified) {
+                synchronized (this) {
+                    remove(key);
+                    Entry entry = new Entry(size, lastModified, deflated);
+                    if (entry.bytes() <= maxBytes) {
+                        entries.put(key, entry);
+                        cachedBytes += entry.bytes();
+                        evict();
+                    }
+                }
+            }
+            mine.complete(deflated);
+            return deflated;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (this) {
+                running.remove(key);
+            }
+        }
+    }
+
+    // True if deflated() answers without compressing: the current version is cached, or it would be sent raw anyway
+    public boolean isCached(File file) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return true;
+        }
+        if (!attrs.isRegularFile() || attrs.size() > MAX_FILE_SIZE) return true;
+        synchronized (this) {
+            Entry entry = entries.get(file.getPath());
+            return entry != null && entry.size == attrs.size() && entry.lastModified == attrs.lastModifiedTime().toMillis();
+        }
+    }
+
+    private static byte[] await(CompletableFuture<byte[]> compression) throws IOException {
+        try {
+            return compression.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    // Default level: BEST_COMPRESSION takes about three times as long for a few percent on HTML
+    private static byte[] deflate(File file, long size) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.max(64, size / 4));
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try (InputStream in = Files.newInputStream(file.toPath());
+             DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater)) {
+            in.transferTo(out);
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    private void remove(String key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            cachedBytes -= old.bytes();
+        }
+    }
+
+    // Drop least recently used entries until both limits hold
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || cachedBytes > maxBytes) && it.hasNext()) {
+            cachedBytes -= it.next().getValue().bytes();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/*
+ * ContentArena
+ * Every small file of one directory packed into a single off-heap (direct) buffer, with an offset table keyed by path
+ * 1. Files up to maxFileSize are read once at startup, the table maps File.getPath() to offset, length and CRC32C,
+ *    a lookup is one HashMap get: no stat, no open, no lock and no allocation
+ * 2. A WatchService keeps it current: a created or changed file is appended to the free end of the arena and
+ *    a new table is published, a deleted one is dropped; when the free end runs out the live entries are copied
+ *    into a new arena (compaction)
+ * 3. An entry points at the buffer it was written to, a reader still holding one of a replaced arena reads the
+ *    bytes it was published with, the old buffer is freed by the GC once nobody holds it
+ * Content and CRC32C of an entry always belong together, a change is served once the watcher has seen it
+ */
+public class ContentArena {
+
+    // Room for changed files after a build or compaction, relative to the live bytes
+    private static final int GROWTH_FACTOR = 2;
+    private static final int MIN_CAPACITY = 1024 * 1024;
+
+    public static final class Entry {
+        private final ByteBuffer arena;
+        private final int offset;
+        private final int length;
+        private final String digest;
+
+        private Entry(ByteBuffer arena, int offset, int length, String digest) {
+            this.arena = arena;
+            this.offset = offset;
+            this.length = length;
+            this.digest = digest;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        // CRC32C of the content as 8 hex digits, like DigestCache
+        public String digest() {
+            return digest;
+        }
+
+        // Read-only direct view of the content, for a gathering write
+        public ByteBuffer slice() {
+            return arena.slice(offset, length).asReadOnlyBuffer();
+        }
+
+        // Copy up to count bytes at position into dst, returns bytes copied (0 past the end)
+        public int read(long position, byte[] dst, int dstOffset, int count) {
+            if (position < 0 || position >= length) return 0;
+            int n = (int) Math.min(count, length - position);
+            // Absolute get does not touch the shared position, so it is safe across threads
+            arena.get(offset + (int) position, dst, dstOffset, n);
+            return n;
+        }
+    }
+
+    private final File directory;
+    private final long maxFileSize;
+    private final int maxCapacity;
+
+    // Replaced as a whole on every change, readers never lock
+    private volatile Map<String, Entry> entries = Map.of();
+    // Arena new content is appended to and its first free byte, only touched under the lock
+    private ByteBuffer arena = ByteBuffer.allocateDirect(0);
+    private int used;
+
+    public ContentArena(File directory, long maxFileSize, long maxCapacity) {
+        this.directory = directory;
+        this.maxFileSize = maxFileSize;
+        this.maxCapacity = (int) Math.min(maxCapacity, Integer.MAX_VALUE - 8);
+        load();
+        startWatcher();
+    }
+
+    // Arena entry of the file, null if it is not stored (too large, not in the directory, arena full)
+    public Entry get(File file) {
+        return entries.get(file.getPath());
+    }
+
+    public int getFileCount() {
+        return entries.size();
+    }
+
+    public synchronized long getUsedBytes() {
+        return used;
+    }
+
+    public synchronized long getCapacity() {
+        return arena.capacity();
+    }
+
+    // Read every small file into a new arena sized for them
+    private synchronized void load() {
+        List<File> files = new ArrayList<>();
+        long total = 0;
+        File[] listed = directory.listFiles();
+        if (listed != null) {
+            for (File file : listed) {
+                if (file.isFile() && file.length() <= maxFileSize) {
+                    files.add(file);
+                    total += file.length();
+                }
+            }
+        }
+
+        allocate(total);
+        Map<String, Entry> table = new HashMap<>();
+        for (File file : files) {
+            byte[] content = read(file);
+            if (content != null && used + content.length <= arena.capacity()) {
+                append(table, file.getPath(), content);
+            }
+        }
+        entries = table;
+    }
+
+    // Bring the entry of one file up to date after a watch event
+    private synchronized void update(String name) {
+        File file = new File(directory, name);
+        String key = file.getPath();
+        byte[] content = read(file);
+        Map<String, Entry> table = new HashMap<>(entries);
+
+        if (content == null) {
+            // Deleted, grown past maxFileSize or not a regular file: served from disk from now on
+            if (table.remove(key) != null) {
+                entries = table;
+            }
+            return;
+        }
+        Entry current = table.get(key);
+        if (current != null && current.length == content.length && current.digest.equals(digest(content))) {
+            return;
+        }
+
+        if (used + content.length > arena.capacity()) {
+            table.remove(key);
+            long live = content.length;
+            for (Entry entry : table.values()) {
+                live += entry.length;
+            }
+            if (live > maxCapacity) {
+                System.out.println("[Warning] Content arena full, serving " + name + " from disk");
+                entries = table;
+                return;
+            }
+            table = compact(table, live);
+        }
+        append(table, key, content);
+        entries = table;
+    }
+
+    // Copy the live entries into a new arena sized for live bytes, returns the table that points into it
+    private Map<String, Entry> compact(Map<String, Entry> table, long live) {
+        allocate(live);
+        Map<String, Entry> compacted = new HashMap<>();
+        for (Map.Entry<String, Entry> e : table.entrySet()) {
+            Entry entry = e.getValue();
+            arena.put(used, entry.arena, entry.offset, entry.length);
+            compacted.put(e.getKey(), new Entry(arena, used, entry.length, entry.digest));
+            used += entry.length;
+        }
+        return compacted;
+    }
+
+    private void allocate(long live) {
+        long capacity = Math.min(maxCapacity, Math.max(MIN_CAPACITY, live * GROWTH_FACTOR));
+        arena = ByteBuffer.allocateDirect((int) capacity);
+        used = 0;
+    }
+
+    // Write content at the free end, the bytes are in place before the table that points at them is published
+    private void append(Map<String, Entry> table, String key, byte[] content) {
+        arena.put(used, content);
+        table.put(key, new Entry(arena, used, content.length, digest(content)));
+        used += content.length;
+    }
+
+    // Content of a regular file up to maxFileSize, null otherwise
+    private byte[] read(File file) {
+        if (!file.isFile() || file.length() > maxFileSize) return null;
+        try {
+            byte[] content = Files.readAllBytes(file.toPath());
+            return content.length <= maxFileSize ? content : null;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.out.println("[Warning] Read " + file + " into the content arena failed, e: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static String digest(byte[] content) {
+        CRC32C crc = new CRC32C();
+        crc.update(content);
+        return DigestCache.format(crc.getValue());
+    }
+
+    private void startWatcher() {
+        WatchService watcher;
+        try {
+            watcher = directory.toPath().getFileSystem().newWatchService();
+            directory.toPath().register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            System.out.println("[Warning] Directory watch unavailable, content arena will not update, e: " + e.getMessage());
+            return;
+        }
+
+        Thread thread = new Thread(() -> watchLoop(watcher), "content-arena-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watchLoop(WatchService watcher) {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were dropped, read everything again
+                        load();
+                        continue;
+                    }
+                    update(((Path) event.context()).toString());
+                }
+                if (!key.reset()) {
+                    System.out.println("[Warning] Directory is no longer watched: " + directory.getAbsolutePath());
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Shutting down
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package common;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/*
+ * ContentCache
+ * Client-side copies of downloaded files, kept on disk so fetching an unchanged file costs one round trip
+ * 1. One file per name in the cache directory, written to a temporary file and moved into place,
+ *    so a crash never leaves a half-written copy under the real name
+ * 2. The version token of a copy is its CRC32C, the same digest servers send as "crc32c=",
+ *    hashed once per copy through a DigestCache (size + mtime)
+ * 3. A get sends "if=<token>", the server answers "unchanged" when its file still has that CRC32C
+ * Since the token is the digest of the content itself, a copy damaged on disk never matches and is fetched again
+ */
+public class ContentCache {
+
+    // URLEncoder never writes a '%' that is not followed by two hex digits, so no cached name ends like this
+    private static final String TEMP_SUFFIX = "%tmp";
+
+    private final File directory;
+    private final DigestCache digests = new DigestCache(1024);
+
+    public ContentCache(File directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory.toPath());
+    }
+
+    // Version token of the cached copy, null if there is none
+    public String version(String name) throws IOException {
+        return digests.digest(file(name));
+    }
+
+    // Where the copy of name is (or would be) stored
+    public File file(String name) {
+        return new File(directory, encode(name));
+    }
+
+    public void put(String name, byte[] content) throws IOException {
+        Path temp = tempFile(name);
+        Files.write(temp, content);
+        Files.move(temp, file(name).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void put(String name, File content) throws IOException {
+        Path temp = tempFile(name);
+        Files.copy(content.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temp, file(name).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void remove(String name) throws IOException {
+        Files.deleteIfExists(file(name).toPath());
+    }
+
+    private Path tempFile(String name) {
+        return new File(directory, encode(name) + TEMP_SUFFIX).toPath();
+    }
+
+    // Separators are encoded and a leading '.' too, so "." and ".." can not point out of the directory
+    private static String encode(String name) {
+        String encoded = URLEncoder.encode(name, StandardCharsets.UTF_8);
+        return encoded.startsWith(".") ? "%2E" + encoded.substring(1) : encoded;
+    }
+}
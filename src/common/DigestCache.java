@@ -0,0 +1,124 @@
+package common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/*
+ * DigestCache
+ * Whole-file CRC32C, computed once per file version and kept in a bounded LRU, keyed by path
+ * 1. A version is the file's size and mtime, a lookup costs one stat
+ * 2. The file is hashed over memory-mapped ranges, CRC32C is a JIT intrinsic (SSE4.2 / ARMv8 CRC instructions)
+ * 3. A result is only cached if the file did not change while it was hashed
+ */
+public class DigestCache {
+
+    // Files are mapped and hashed this many bytes at a time
+    private static final long MAP_SIZE = 64L * 1024 * 1024;
+
+    private final int maxEntries;
+
+    private static final class Digest {
+        private final long size;
+        private final long lastModified;
+        private final String hex;
+
+        private Digest(long size, long lastModified, String hex) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hex = hex;
+        }
+    }
+
+    private final LinkedHashMap<String, Digest> digests;
+
+    public DigestCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        // Access order, so the eldest entry is the least recently used one
+        this.digests = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Digest> eldest) {
+                return size() > DigestCache.this.maxEntries;
+            }
+        };
+    }
+
+    // CRC32C of the file as 8 hex digits, null if it is not a regular file
+    public String digest(File file) throws IOException {
+        String key = file.getPath();
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            synchronized (this) {
+                digests.remove(key);
+            }
+            return null;
+        }
+        if (!attrs.isRegularFile()) return null;
+
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        synchronized (this) {
+            Digest digest = digests.get(key);
+            if (digest != null && digest.size == size && digest.lastModified == lastModified) {
+                return digest.hex;
+            }
+        }
+
+        // Hash outside the lock, lookups of other files do not wait for a large file
+        String hex = format(crc32c(file.toPath()));
+
+        BasicFileAttributes after = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        if (after.size() == size && after.lastModifiedTime().toMillis() == lastModified) {
+            synchronized (this) {
+                digests.put(key, new Digest(size, lastModified, hex));
+            }
+        }
+        return hex;
+    }
+
+    // Cached CRC32C of the file's current version, null if digest() would have to hash it (or it is not a regular file)
+    // Costs one stat and never hashes, for threads that must not block on a large file
+    public String cached(File file) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        synchronized (this) {
+            Digest digest = digests.get(file.getPath());
+            if (digest != null && digest.size == attrs.size() && digest.lastModified == attrs.lastModifiedTime().toMillis()) {
+                return digest.hex;
+            }
+        }
+        return null;
+    }
+
+    // CRC32C of the whole file
+    public static long crc32c(Path path) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_SIZE) {
+                MappedByteBuffer range = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, size - position));
+                crc.update(range);
+            }
+        }
+        return crc.getValue();
+    }
+
+    public static String format(long crc) {
+        return String.format("%08x", crc);
+    }
+}
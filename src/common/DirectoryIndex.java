@@ -0,0 +1,144 @@
+package common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/*
+ * DirectoryIndex
+ * File list of one directory, scanned once and then kept up to date by a WatchService
+ * 1. Every change bumps the generation number
+ * 2. snapshot() encodes the list at most once per generation ("name\n" per file, UTF-8)
+ * 3. The last few snapshots are kept, so a client can fetch all chunks of the same generation
+ */
+public class DirectoryIndex {
+
+    // How many old generations stay available for clients that are still fetching them
+    private static final int RETAINED_SNAPSHOTS = 8;
+
+    public static final class Snapshot {
+        public final long generation;
+        public final byte[] bytes;
+
+        private Snapshot(long generation, byte[] bytes) {
+            this.generation = generation;
+            this.bytes = bytes;
+        }
+    }
+
+    private final File directory;
+    private final TreeSet<String> names = new TreeSet<>();
+    private long generation = 0;
+    private Snapshot current;
+
+    // Generation -> snapshot, in insertion order so the oldest is dropped first
+    private final Map<Long, Snapshot> retained = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Snapshot> eldest) {
+            return size() > RETAINED_SNAPSHOTS;
+        }
+    };
+
+    public DirectoryIndex(File directory) {
+        this.directory = directory;
+        rescan();
+        startWatcher();
+    }
+
+    // Snapshot of the current generation, encoded only if the list changed since the last call
+    public synchronized Snapshot snapshot() {
+        if (current == null || current.generation != generation) {
+            StringBuilder sb = new StringBuilder();
+            for (String name : names) {
+                sb.append(name).append("\n");
+            }
+            current = new Snapshot(generation, sb.toString().getBytes(StandardCharsets.UTF_8));
+            retained.put(generation, current);
+        }
+        return current;
+    }
+
+    // A snapshot handed out earlier, or null if it is too old
+    public synchronized Snapshot snapshot(long generation) {
+        return retained.get(generation);
+    }
+
+    private synchronized void rescan() {
+        names.clear();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isFile()) {
+                    names.add(f.getName());
+                }
+            }
+        }
+        generation++;
+    }
+
+    private synchronized void add(String name) {
+        if (new File(directory, name).isFile() && names.add(name)) {
+            generation++;
+        }
+    }
+
+    private synchronized void remove(String name) {
+        if (names.remove(name)) {
+            generation++;
+        }
+    }
+
+    private void startWatcher() {
+        WatchService watcher;
+        try {
+            watcher = directory.toPath().getFileSystem().newWatchService();
+            directory.toPath().register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            System.out.println("[Warning] Directory watch unavailable, index will not update, e: " + e.getMessage());
+            return;
+        }
+
+        Thread thread = new Thread(() -> watchLoop(watcher), "directory-index-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watchLoop(WatchService watcher) {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were dropped, the only safe option is a full scan
+                        rescan();
+                        continue;
+                    }
+
+                    String name = ((Path) event.context()).toString();
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        add(name);
+                    } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        remove(name);
+                    }
+                }
+                if (!key.reset()) {
+                    System.out.println("[Warning] Directory is no longer watched: " + directory.getAbsolutePath());
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Shutting down
+        }
+    }
+}
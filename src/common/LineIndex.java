@@ -0,0 +1,273 @@
+package common;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/*
+ * LineIndex
+ * Line count of a file that is only ever appended to, kept up to date by scanning just the new bytes
+ * 1. Checkpoint: file identity (fileKey, e.g. dev+inode, and mtime), bytes scanned, line terminators seen,
+ *    where the last line starts and the CRC32C of the TAIL_CHECK bytes before the scan offset
+ * 2. update() scans from the checkpoint to the end, a file that is smaller, has another fileKey (rotated)
+ *    or whose bytes before the checkpoint changed (copy-truncate, rewrite) is counted again from byte 0
+ * 3. Sparse offset index: the byte offset of every INDEX_STEP-th line start, lineStart() seeks with it
+ *    and scans at most INDEX_STEP lines
+ * Counts match BufferedReader.readLine(): "\n", "\r" and "\r\n" end a line, a last line without terminator counts;
+ * a '\r' as the very last byte is left unscanned until the next byte shows whether it is "\r\n"
+ */
+public class LineIndex {
+
+    // Every INDEX_STEP-th line start goes into the offset index
+    public static final int INDEX_STEP = 8192;
+    // Bytes before the checkpoint that must be unchanged for the scan to continue from it
+    private static final int TAIL_CHECK = 64;
+    // Files are mapped and scanned this many bytes at a time
+    private static final long MAP_SIZE = 64L * 1024 * 1024;
+
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL; // '\n' in every byte
+    private static final long RETURNS = 0x0D0D0D0D0D0D0D0DL;  // '\r' in every byte
+
+    private final String path;
+    private long size;
+    private String fileKey = "-";
+    private long lastModified;
+    // Bytes scanned from the start, size or size - 1 if the last byte is a '\r'
+    private long scanned;
+    private long terminators;
+    private long lastLineStart;
+    private long tailCrc;
+    // offsets[k] is where line (k + 1) * INDEX_STEP starts (0-based line numbers)
+    private long[] offsets = new long[0];
+    private int offsetCount;
+    // fileKey, size and mtime as of the last update(), read by isCurrent() without the lock update() runs under
+    private volatile String version = "";
+
+    public LineIndex(String path) {
+        this.path = path;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    // Size of the file as of the last update()
+    public long getSize() {
+        return size;
+    }
+
+    // Lines of the file as of the last update()
+    public long getLineCount() {
+        return terminators + (size > lastLineStart ? 1 : 0);
+    }
+
+    // True if the file is still what the last update() saw, one stat
+    public boolean isCurrent() throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(Path.of(path), BasicFileAttributes.class);
+        return version.equals(version(attrs));
+    }
+
+    private static String version(BasicFileAttributes attrs) {
+        return (attrs.fileKey() == null ? "-" : attrs.fileKey().toString()) + " " + attrs.size() + " " + attrs.lastModifiedTime().toMillis();
+    }
+
+    // Bring the count up to date, returns true if the file changed since the last update
+    public boolean update() throws IOException {
+        Path file = Path.of(path);
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        String key = attrs.fileKey() == null ? "-" : attrs.fileKey().toString();
+        long modified = attrs.lastModifiedTime().toMillis();
+        if (attrs.size() == size && modified == lastModified && key.equals(fileKey)) {
+            version = version(attrs);
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long newSize = channel.size();
+            if (!key.equals(fileKey) || newSize < scanned || tailCrc != tailCrc(channel, scanned)) {
+                // Rotated, truncated or rewritten: the checkpoint says nothing about this content
+                reset();
+            }
+            scan(channel, newSize);
+            size = newSize;
+            fileKey = key;
+            lastModified = modified;
+            tailCrc = tailCrc(channel, scanned);
+        }
+        version = version(attrs);
+        return true;
+    }
+
+    // Byte offset where line (0-based) starts, -1 if the file has fewer lines; the file must not have changed since update()
+    public long lineStart(long line) throws IOException {
+        if (line < 0 || line >= getLineCount()) return -1;
+        int k = (int) Math.min(line / INDEX_STEP, offsetCount);
+        long position = k == 0 ? 0 : offsets[k - 1];
+        long remaining = line - (long) k * INDEX_STEP;
+        if (remaining == 0) return position;
+
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long bufferStart = position;
+            int read;
+            boolean afterReturn = false;
+            while ((read = channel.read(buffer.clear(), bufferStart)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer.get(i);
+                    if (afterReturn && b == '\n') {
+                        // "\r\n": the line ended at the '\r' but starts after the '\n'
+                        afterReturn = false;
+                        if (remaining == 0) return bufferStart + i + 1;
+                        continue;
+                    }
+                    if (afterReturn && remaining == 0) return bufferStart + i;
+                    afterReturn = false;
+                    if (b == '\n' || b == '\r') {
+                        remaining--;
+                        if (remaining == 0 && b == '\n') return bufferStart + i + 1;
+                        afterReturn = b == '\r';
+                    }
+                }
+                bufferStart += read;
+            }
+            // The file ends right after the '\r' that ended the line before
+            return remaining == 0 ? bufferStart : -1;
+        }
+    }
+
+    // One line of text, read back with parse()
+    public String toLine() {
+        StringBuilder line = new StringBuilder();
+        line.append(URLEncoder.encode(path, StandardCharsets.UTF_8)).append(' ')
+                .append(size).append(' ')
+                .append(URLEncoder.encode(fileKey, StandardCharsets.UTF_8)).append(' ')
+                .append(lastModified).append(' ')
+                .append(scanned).append(' ')
+                .append(terminators).append(' ')
+                .append(lastLineStart).append(' ')
+                .append(Long.toHexString(tailCrc)).append(' ');
+        for (int i = 0; i < offsetCount; i++) {
+            line.append(i == 0 ? "" : ",").append(offsets[i]);
+        }
+        if (offsetCount == 0) {
+            line.append('-');
+        }
+        return line.toString();
+    }
+
+    // A checkpoint written by toLine(), null if the line is malformed
+    public static LineIndex parse(String line) {
+        String[] fields = line.trim().split(" ");
+        if (fields.length != 9) return null;
+        try {
+            LineIndex index = new LineIndex(URLDecoder.decode(fields[0], StandardCharsets.UTF_8));
+            index.size = Long.parseLong(fields[1]);
+            index.fileKey = URLDecoder.decode(fields[2], StandardCharsets.UTF_8);
+            index.lastModified = Long.parseLong(fields[3]);
+            index.scanned = Long.parseLong(fields[4]);
+            index.terminators = Long.parseLong(fields[5]);
+            index.lastLineStart = Long.parseLong(fields[6]);
+            index.tailCrc = Long.parseLong(fields[7], 16);
+            if (!fields[8].equals("-")) {
+                index.offsets = Arrays.stream(fields[8].split(",")).mapToLong(Long::parseLong).toArray();
+                index.offsetCount = index.offsets.length;
+            }
+            return index;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void reset() {
+        size = 0;
+        fileKey = "-";
+        scanned = 0;
+        terminators = 0;
+        lastLineStart = 0;
+        tailCrc = 0;
+        offsetCount = 0;
+    }
+
+    // Scan [scanned, end) in mapped ranges, a '\r' as the last byte waits for the next update
+    private void scan(FileChannel channel, long end) throws IOException {
+        while (scanned < end) {
+            // Map one extra byte if there is one, so a '\r' at the end of the range can see the next byte
+            long rangeEnd = Math.min(end, scanned + MAP_SIZE);
+            long mapEnd = Math.min(end, rangeEnd + 1);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, scanned, mapEnd - scanned);
+            int length = (int) (rangeEnd - scanned);
+            if (rangeEnd == end && buffer.get(length - 1) == '\r') {
+                length--;
+                if (length == 0) return;
+            }
+            scanRange(buffer, scanned, length);
+            scanned += length;
+        }
+    }
+
+    // Visit every terminator that starts in the first length bytes, 8 bytes at a time (SWAR)
+    private void scanRange(MappedByteBuffer buffer, long base, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long word = buffer.getLong(i);
+            long found = zeroBytes(word ^ NEWLINES) | zeroBytes(word ^ RETURNS);
+            while (found != 0) {
+                // Big-endian: the highest set bit is the first byte in the word
+                int index = i + Long.numberOfLeadingZeros(found) / 8;
+                onByte(buffer, base, index);
+                found &= ~Long.highestOneBit(found);
+            }
+        }
+        for (; i < length; i++) {
+            byte b = buffer.get(i);
+            if (b == '\n' || b == '\r') {
+                onByte(buffer, base, i);
+            }
+        }
+    }
+
+    // A '\n' or '\r' at index, "\r\n" is one terminator counted at its '\n'
+    private void onByte(MappedByteBuffer buffer, long base, int index) {
+        if (buffer.get(index) == '\r' && index + 1 < buffer.limit() && buffer.get(index + 1) == '\n') {
+            return;
+        }
+        terminators++;
+        lastLineStart = base + index + 1;
+        if (terminators % INDEX_STEP == 0) {
+            if (offsetCount == offsets.length) {
+                offsets = Arrays.copyOf(offsets, Math.max(16, offsetCount * 2));
+            }
+            offsets[offsetCount++] = lastLineStart;
+        }
+    }
+
+    // CRC32C of the TAIL_CHECK bytes before offset, 0 for offset 0
+    private static long tailCrc(FileChannel channel, long offset) throws IOException {
+        if (offset == 0) return 0;
+        int length = (int) Math.min(TAIL_CHECK, offset);
+        ByteBuffer tail = ByteBuffer.allocate(length);
+        while (tail.hasRemaining()) {
+            if (channel.read(tail, offset - length + tail.position()) < 0) return -1;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(tail.flip());
+        return crc.getValue();
+    }
+
+    // High bit set in every byte of x that is zero, exact (no false positives from borrows)
+    private static long zeroBytes(long x) {
+        long t = (x & LOW_BITS) + LOW_BITS;
+        return ~(t | x | LOW_BITS);
+    }
+}
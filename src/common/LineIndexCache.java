@@ -0,0 +1,86 @@
+package common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * LineIndexCache
+ * Sparse line-offset indexes (LineIndex) of files asked for by line range, built on the first request and kept in a bounded LRU
+ * 1. Every lookup first brings the index up to date: one stat for an unchanged file, a scan of the new bytes for a grown one,
+ *    a rotated or rewritten file is indexed again from byte 0
+ * 2. A line is found from the nearest indexed offset, so a lookup scans at most LineIndex.INDEX_STEP lines,
+ *    the last lines of a large log cost about as much as the first ones
+ * 3. Lookups of one file are serialized on its index, other files are not held up
+ */
+public class LineIndexCache {
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, LineIndex> indexes;
+
+    // Lines firstLine..lastLine (1-based, inclusive, 0-0 if none) are the bytes [start, end) of a file of lineCount lines
+    public static final class LineRange {
+        public final long start;
+        public final long end;
+        public final long firstLine;
+        public final long lastLine;
+        public final long lineCount;
+
+        private LineRange(long start, long end, long firstLine, long lastLine, long lineCount) {
+            this.start = start;
+            this.end = end;
+            this.firstLine = firstLine;
+            this.lastLine = lastLine;
+            this.lineCount = lineCount;
+        }
+    }
+
+    public LineIndexCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        // Access order, so the eldest entry is the least recently used one
+        this.indexes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LineIndex> eldest) {
+                return size() > LineIndexCache.this.maxEntries;
+            }
+        };
+    }
+
+    // True if lineRange() of the file only has to seek: its index exists and the file did not change since it was updated
+    // Never scans and does not wait for a lookup running on the file
+    public boolean isCurrent(File file) throws IOException {
+        LineIndex index;
+        synchronized (this) {
+            index = indexes.get(file.getPath());
+        }
+        return index != null && index.isCurrent();
+    }
+
+    // Lines from..to (1-based, inclusive, to past the end means up to the last line), from < 0 selects the last -from lines
+    // null if the file is not a regular file
+    public LineRange lineRange(File file, long from, long to) throws IOException {
+        if (!file.isFile()) return null;
+
+        LineIndex index;
+        synchronized (this) {
+            index = indexes.computeIfAbsent(file.getPath(), LineIndex::new);
+        }
+        synchronized (index) {
+            index.update();
+            long lines = index.getLineCount();
+            // 0-based, first inclusive, last exclusive
+            long first = from < 0 ? Math.max(0, lines + from) : Math.min(from - 1, lines);
+            long last = from < 0 ? lines : Math.min(to, lines);
+            if (first >= last) {
+                return new LineRange(index.getSize(), index.getSize(), 0, 0, lines);
+            }
+            long start = index.lineStart(first);
+            long end = last == lines ? index.getSize() : index.lineStart(last);
+            if (start < 0 || end < 0) {
+                throw new IOException("Line index of " + file + " is out of date");
+            }
+            return new LineRange(start, end, first + 1, last, lines);
+        }
+    }
+}
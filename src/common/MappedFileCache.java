@@ -0,0 +1,195 @@
+package common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * MappedFileCache
+ * Bounded LRU cache of open files, keyed by path
+ * 1. Small files are memory-mapped once, the channel is closed right after mapping
+ * 2. Large files keep an open FileChannel and are read with positional reads
+ * 3. An entry is dropped when the file's size or mtime changes
+ *
+ * Limits: at most maxEntries files and maxMappedBytes of mapped memory
+ */
+public class MappedFileCache {
+
+    // Files larger than this are not mapped, they stay as an open channel
+    private static final long MAX_MAPPED_FILE = 64L * 1024 * 1024;
+
+    private final int maxEntries;
+    private final long maxMappedBytes;
+    private long mappedBytes = 0;
+
+    // Access order, so the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public static final class Entry {
+        private final long size;
+        private final long lastModified;
+        private final MappedByteBuffer mapped;
+        private final FileChannel channel;
+
+        private Entry(long size, long lastModified, MappedByteBuffer mapped, FileChannel channel) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.mapped = mapped;
+            this.channel = channel;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public long lastModified() {
+            return lastModified;
+        }
+
+        // Read-only view of [offset, offset + length), or null if the file is not mapped
+        public ByteBuffer slice(long offset, int length) {
+            if (mapped == null) return null;
+            int start = (int) Math.min(offset, size);
+            int end = (int) Math.min(size, start + (long) length);
+            return mapped.slice(start, end - start).asReadOnlyBuffer();
+        }
+
+        // Copy up to length bytes at offset into dst, returns bytes copied (0 past end of file)
+        private int read(long offset, byte[] dst, int dstOffset, int length) throws IOException {
+            if (offset < 0 || offset >= size) return 0;
+            int count = (int) Math.min(length, size - offset);
+
+            if (mapped != null) {
+                // Absolute get does not touch the shared position, so it is safe across threads
+                mapped.get((int) offset, dst, dstOffset, count);
+                return count;
+            }
+
+            ByteBuffer target = ByteBuffer.wrap(dst, dstOffset, count);
+            while (target.hasRemaining()) {
+                int n = channel.read(target, offset + target.position() - dstOffset);
+                if (n < 0) break;
+            }
+            return target.position() - dstOffset;
+        }
+
+        private void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.out.println("[Warning] Close cached file failed, e: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public MappedFileCache(int maxEntries, long maxMappedBytes) {
+        this.maxEntries = maxEntries;
+        this.maxMappedBytes = maxMappedBytes;
+    }
+
+    // Current entry for the file, opened or reopened if needed, null if it is not a regular file
+    public Entry get(File file) throws IOException {
+        String key = file.getPath();
+
+        // One stat per lookup, done outside the lock
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            invalidate(key);
+            return null;
+        }
+        if (!attrs.isRegularFile()) return null;
+
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+                return entry;
+            }
+            if (entry != null) {
+                remove(key);
+            }
+
+            entry = open(file, size, lastModified);
+            entries.put(key, entry);
+            if (entry.mapped != null) {
+                mappedBytes += size;
+            }
+            evict(key);
+            return entry;
+        }
+    }
+
+    // Copy one chunk of the file into dst, returns bytes copied or -1 if the file does not exist
+    public int read(File file, long offset, byte[] dst, int dstOffset, int length) throws IOException {
+        Entry entry = get(file);
+        if (entry == null) return -1;
+
+        try {
+            return entry.read(offset, dst, dstOffset, length);
+        } catch (ClosedChannelException e) {
+            // Evicted by another thread between get() and read(), open it again
+            entry = get(file);
+            return entry == null ? -1 : entry.read(offset, dst, dstOffset, length);
+        }
+    }
+
+    public synchronized void invalidate(String key) {
+        remove(key);
+    }
+
+    private Entry open(File file, long size, long lastModified) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        if (size > MAX_MAPPED_FILE || size > maxMappedBytes) {
+            return new Entry(size, lastModified, null, channel);
+        }
+
+        try {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new Entry(size, lastModified, mapped, null);
+        } finally {
+            // The mapping stays valid after the channel is closed
+            channel.close();
+        }
+    }
+
+    // Drop least recently used entries until both limits hold again, never the one just added
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || mappedBytes > maxMappedBytes) && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            if (eldest.getKey().equals(keep)) continue;
+            it.remove();
+            release(eldest.getValue());
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            release(entry);
+        }
+    }
+
+    private void release(Entry entry) {
+        if (entry.mapped != null) {
+            mappedBytes -= entry.size;
+        }
+        entry.close();
+    }
+}
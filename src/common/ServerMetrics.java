@@ -0,0 +1,166 @@
+package common;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/*
+ * ServerMetrics
+ * Counters and latency histograms of one server, readable as text (stats command) and over JMX
+ * 1. Commands: every command name given to the constructor gets a request count and a LatencyHistogram,
+ *    the handler calls record(name, startNanos) when it is done
+ * 2. Counters: LongAdders bumped on the request path (bytes sent, packets sent, ...), created on first use
+ * 3. Gauges: values read when a report is made (queue depth, open connections, ...)
+ * 4. The same values are attributes of a DynamicMBean "<domain>:type=<name>", e.g. INFO.p99Micros,
+ *    so jconsole or any JMX client can watch a running server
+ * Recording never takes a lock, only adding counters/gauges and reading do
+ */
+public class ServerMetrics implements DynamicMBean {
+
+    private final String domain;
+    private final String name;
+    private final long startedAt = System.currentTimeMillis();
+    private final Map<String, LatencyHistogram> commands = new LinkedHashMap<>();
+    private final Map<String, LongAdder> counters = new LinkedHashMap<>();
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+    public ServerMetrics(String domain, String name, String... commandNames) {
+        this.domain = domain;
+        this.name = name;
+        for (String command : commandNames) {
+            commands.put(command, new LatencyHistogram());
+        }
+    }
+
+    // Record one request of command that started at startNanos (System.nanoTime()), other names are ignored
+    public void record(String command, long startNanos) {
+        LatencyHistogram histogram = commands.get(command);
+        if (histogram != null) {
+            histogram.record(System.nanoTime() - startNanos);
+        }
+    }
+
+    // Counter of that name, created the first time it is asked for, hold on to it on hot paths
+    public synchronized LongAdder counter(String counter) {
+        return counters.computeIfAbsent(counter, k -> new LongAdder());
+    }
+
+    public synchronized void gauge(String gauge, LongSupplier value) {
+        gauges.put(gauge, value);
+    }
+
+    // Register as "<domain>:type=<name>" with the platform MBean server, a failure only costs the JMX view
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(domain + ":type=" + name));
+        } catch (JMException e) {
+            System.out.println("[Warning] Could not register metrics MBean, e: " + e.getMessage());
+        }
+    }
+
+    // Plain text report, one line per command, counter and gauge
+    public String report() {
+        StringBuilder text = new StringBuilder();
+        text.append(name).append(" uptime ").append((System.currentTimeMillis() - startedAt) / 1000).append(" s\n");
+        for (Map.Entry<String, LatencyHistogram> entry : commands.entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            text.append(String.format("%-12s count %d, mean %d us, p50 %d us, p99 %d us, p99.9 %d us, max %d us%n",
+                    entry.getKey(), h.getCount(), micros(h.getMean()), micros(h.getPercentile(50)),
+                    micros(h.getPercentile(99)), micros(h.getPercentile(99.9)), micros(h.getMax())));
+        }
+        for (Map.Entry<String, LongSupplier> entry : values().entrySet()) {
+            text.append(entry.getKey()).append(' ').append(entry.getValue().getAsLong()).append('\n');
+        }
+        return text.toString();
+    }
+
+    // Counters and gauges by name, in the order they were added
+    private synchronized Map<String, LongSupplier> values() {
+        Map<String, LongSupplier> values = new LinkedHashMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue()::sum);
+        }
+        values.putAll(gauges);
+        return values;
+    }
+
+    // Every JMX attribute: the counters and gauges, and count/mean/percentiles of each command
+    private Map<String, LongSupplier> attributes() {
+        Map<String, LongSupplier> attributes = new LinkedHashMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : commands.entrySet()) {
+            String command = entry.getKey();
+            LatencyHistogram h = entry.getValue();
+            attributes.put(command + ".count", h::getCount);
+            attributes.put(command + ".meanMicros", () -> micros(h.getMean()));
+            attributes.put(command + ".p50Micros", () -> micros(h.getPercentile(50)));
+            attributes.put(command + ".p99Micros", () -> micros(h.getPercentile(99)));
+            attributes.put(command + ".p999Micros", () -> micros(h.getPercentile(99.9)));
+            attributes.put(command + ".maxMicros", () -> micros(h.getMax()));
+        }
+        attributes.putAll(values());
+        return attributes;
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1000;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        LongSupplier value = attributes().get(attribute);
+        if (value == null) throw new AttributeNotFoundException(attribute);
+        return value.getAsLong();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        Map<String, LongSupplier> attributes = attributes();
+        AttributeList list = new AttributeList();
+        for (String attribute : names) {
+            LongSupplier value = attributes.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value.getAsLong()));
+            }
+        }
+        return list;
+    }
+
+    // Every attribute is read-only
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> infos = new ArrayList<>();
+        for (String attribute : attributes().keySet()) {
+            infos.add(new MBeanAttributeInfo(attribute, "long", attribute, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), name + " metrics",
+                infos.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+    }
+}